@@ -52,8 +52,10 @@ public final class R {
         public static final int ok=0x7f060001;
         public static final int out_of_memory=0x7f06000a;
         public static final int parsing=0x7f060006;
+        public static final int redo=0x7f06000d;
         public static final int saving=0x7f060007;
         public static final int success=0x7f060004;
+        public static final int undo=0x7f06000c;
     }
     public static final class style {
         public static final int AppTheme=0x7f070000;
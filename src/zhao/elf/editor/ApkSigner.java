@@ -0,0 +1,272 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * APK签名方案v2/v3签名，修改压缩包中的so后重新签名
+ * 内容按1M分块计算摘要，各块互不依赖，在所有CPU核心上并行计算；签名块中同时写入v2和v3签名
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ApkSigner {
+	/** 计算摘要的分块大小 */
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	private static final int DIGEST_SIZE = 32;
+
+	private static final int BLOCK_ID_V2 = 0x7109871a;
+	private static final int BLOCK_ID_V3 = 0xf05368c0;
+	/** v2签名中的属性，表示同时存在v3签名，防止v3签名被剥离 */
+	private static final int STRIPPING_PROTECTION_ID = 0xbeeff00d;
+	private static final long BLOCK_MAGIC_LO = 0x20676953204b5041L; // "APK Sig "
+	private static final long BLOCK_MAGIC_HI = 0x3234206b636f6c42L; // "Block 42"
+
+	/** v3签名从Android 9开始支持 */
+	private static final int V3_MIN_SDK = 28;
+
+	private static final int RSA_PKCS1_V1_5_WITH_SHA256 = 0x0103;
+	private static final int ECDSA_WITH_SHA256 = 0x0201;
+	private static final int DSA_WITH_SHA256 = 0x0301;
+
+	private final PrivateKey mKey;
+	private final X509Certificate[] mCertificates;
+	private final int mAlgorithm;
+	private final String mSignatureName;
+	private int mThreads = Runtime.getRuntime().availableProcessors();
+
+	public ApkSigner(PrivateKey key, X509Certificate[] certificates) throws IOException {
+		mKey = key;
+		mCertificates = certificates;
+		String algorithm = key.getAlgorithm();
+		if ("RSA".equals(algorithm)) {
+			mAlgorithm = RSA_PKCS1_V1_5_WITH_SHA256;
+			mSignatureName = "SHA256withRSA";
+		} else if ("EC".equals(algorithm)) {
+			mAlgorithm = ECDSA_WITH_SHA256;
+			mSignatureName = "SHA256withECDSA";
+		} else if ("DSA".equals(algorithm)) {
+			mAlgorithm = DSA_WITH_SHA256;
+			mSignatureName = "SHA256withDSA";
+		} else {
+			throw new IOException("Unsupported key algorithm " + algorithm);
+		}
+	}
+
+	/**
+	 * 从密钥库读取签名密钥
+	 *
+	 * @param type
+	 *            密钥库类型，如PKCS12、BKS，为null时使用默认类型
+	 * @param alias
+	 *            密钥别名，为null时使用第一个密钥
+	 */
+	public static ApkSigner fromKeyStore(File file, String type, char[] storePassword, String alias,
+			char[] keyPassword) throws IOException {
+		try {
+			KeyStore keyStore = KeyStore.getInstance(type == null ? KeyStore.getDefaultType() : type);
+			FileInputStream fis = new FileInputStream(file);
+			try {
+				keyStore.load(fis, storePassword);
+			} finally {
+				fis.close();
+			}
+			if (alias == null) {
+				for (Enumeration<String> aliases = keyStore.aliases(); aliases.hasMoreElements();) {
+					String name = aliases.nextElement();
+					if (keyStore.isKeyEntry(name)) {
+						alias = name;
+						break;
+					}
+				}
+			}
+			PrivateKey key = alias == null ? null : (PrivateKey) keyStore.getKey(alias, keyPassword);
+			if (key == null) {
+				throw new IOException("No private key in " + file);
+			}
+			Certificate[] chain = keyStore.getCertificateChain(alias);
+			X509Certificate[] certificates = new X509Certificate[chain.length];
+			for (int i = 0; i < chain.length; i++) {
+				certificates[i] = (X509Certificate) chain[i];
+			}
+			return new ApkSigner(key, certificates);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	/** 设置并行计算摘要的线程数 */
+	public void setThreads(int threads) {
+		mThreads = threads;
+	}
+
+	/**
+	 * 生成APK签名块
+	 *
+	 * @param sections
+	 *            参与摘要的三部分: 所有条目数据、中央目录、中央目录结束记录(其中的中央目录偏移须指向签名块)
+	 */
+	public byte[] sign(ByteBuffer[] sections) throws IOException {
+		byte[] digest = digest(sections);
+		try {
+			byte[] digests = prefixed(prefixed(concat(u32(mAlgorithm), prefixed(digest))));
+			List<byte[]> encoded = new ArrayList<byte[]>();
+			for (X509Certificate certificate : mCertificates) {
+				encoded.add(prefixed(certificate.getEncoded()));
+			}
+			byte[] certificates = prefixed(concat(encoded.toArray(new byte[encoded.size()][])));
+			byte[] publicKey = prefixed(mCertificates[0].getPublicKey().getEncoded());
+
+			byte[] v2 = concat(digests, certificates,
+					prefixed(prefixed(concat(u32(STRIPPING_PROTECTION_ID), u32(3)))));
+			byte[] v2Signer = concat(prefixed(v2), signatures(v2), publicKey);
+
+			byte[] sdk = concat(u32(V3_MIN_SDK), u32(Integer.MAX_VALUE));
+			byte[] v3 = concat(digests, certificates, sdk, u32(0));
+			byte[] v3Signer = concat(prefixed(v3), sdk, signatures(v3), publicKey);
+
+			return block(prefixed(prefixed(v2Signer)), prefixed(prefixed(v3Signer)));
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	private byte[] signatures(byte[] signedData) throws GeneralSecurityException {
+		Signature signature = Signature.getInstance(mSignatureName);
+		signature.initSign(mKey);
+		signature.update(signedData);
+		return prefixed(prefixed(concat(u32(mAlgorithm), prefixed(signature.sign()))));
+	}
+
+	/** 组装APK签名块: 长度、ID-值对、长度、魔数 */
+	private static byte[] block(byte[] v2, byte[] v3) {
+		int size = 12 + v2.length + 12 + v3.length + 8 + 16;
+		ByteBuffer buffer = ByteBuffer.allocate(8 + size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putLong(size);
+		buffer.putLong(4 + v2.length).putInt(BLOCK_ID_V2).put(v2);
+		buffer.putLong(4 + v3.length).putInt(BLOCK_ID_V3).put(v3);
+		buffer.putLong(size);
+		buffer.putLong(BLOCK_MAGIC_LO).putLong(BLOCK_MAGIC_HI);
+		return buffer.array();
+	}
+
+	/**
+	 * 计算内容摘要，各部分分别按1M分块，每块摘要为SHA-256(0xa5 + 块长度 + 块数据)，
+	 * 最终摘要为SHA-256(0x5a + 块数 + 所有块摘要)
+	 */
+	byte[] digest(ByteBuffer[] sections) throws IOException {
+		List<ByteBuffer> list = new ArrayList<ByteBuffer>();
+		for (ByteBuffer section : sections) {
+			for (int pos = section.position(); pos < section.limit(); pos += CHUNK_SIZE) {
+				ByteBuffer chunk = section.duplicate();
+				chunk.position(pos);
+				chunk.limit(Math.min(section.limit(), pos + CHUNK_SIZE));
+				list.add(chunk);
+			}
+		}
+		final ByteBuffer[] chunks = list.toArray(new ByteBuffer[list.size()]);
+		final byte[] digests = new byte[5 + chunks.length * DIGEST_SIZE];
+		digests[0] = 0x5a;
+		ByteBuffer.wrap(digests).order(ByteOrder.LITTLE_ENDIAN).putInt(1, chunks.length);
+
+		int threads = Math.max(1, Math.min(mThreads, chunks.length));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			int count = (chunks.length + threads - 1) / threads;
+			for (int from = 0; from < chunks.length; from += count) {
+				final int begin = from;
+				final int end = Math.min(chunks.length, from + count);
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws GeneralSecurityException {
+						MessageDigest md = MessageDigest.getInstance("SHA-256");
+						ByteBuffer prefix = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN);
+						for (int i = begin; i < end; i++) {
+							prefix.clear();
+							prefix.put((byte) 0xa5).putInt(chunks[i].remaining());
+							md.update(prefix.array());
+							md.update(chunks[i]);
+							md.digest(digests, 5 + i * DIGEST_SIZE, DIGEST_SIZE);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+			return MessageDigest.getInstance("SHA-256").digest(digests);
+		} catch (InterruptedException | GeneralSecurityException e) {
+			throw new IOException(e.toString());
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause().toString());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static byte[] u32(int value) {
+		return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (byte[] part : parts) {
+			buffer.put(part);
+		}
+		return buffer.array();
+	}
+
+	/** 加上4字节的长度前缀 */
+	private static byte[] prefixed(byte[] data) {
+		return concat(u32(data.length), data);
+	}
+}
@@ -0,0 +1,321 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * 编辑日志，以sidecar文件的形式追加记录每一次修改(段索引, 偏移, 旧数据, 新数据)，支持撤销和重做
+ * 重新打开文件时按记录重放即可恢复上次的编辑，重放只与修改次数有关
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import zhao.elf.editor.Elf.ItemHelper;
+import zhao.elf.editor.IO.LEDataInputStream;
+import zhao.elf.editor.IO.LEDataOutputStream;
+
+public class EditJournal {
+	/** 日志文件后缀 */
+	public static final String SUFFIX = ".elfjournal";
+
+	private static final int MAGIC = 0x4a464c45; // "ELFJ"
+	private static final int VERSION = 2;
+	/** 文件头大小: 魔数、版本、文件大小、修改时间、摘要 */
+	private static final int HEADER_SIZE = 4 * 2 + 8 * 2 + 4;
+
+	private static final byte OP_EDIT = 1;
+	private static final byte OP_UNDO = 2;
+	private static final byte OP_REDO = 3;
+
+	/** 一条修改记录 */
+	public static class Record {
+		public final int section; // 段在节区头部表中的索引
+		public final int offset; // 字符串在段中的偏移
+		public final byte[] oldBytes;
+		public final byte[] newBytes;
+
+		public Record(int section, int offset, byte[] oldBytes, byte[] newBytes) {
+			this.section = section;
+			this.offset = offset;
+			this.oldBytes = oldBytes;
+			this.newBytes = newBytes;
+		}
+	}
+
+	private final File mFile;
+	private final File mTarget;
+	private final Elf mElf;
+	/** 文件的摘要，打开时从elf取得，保存后文件改变，下次写日志时重新计算 */
+	private int mDigest;
+	private boolean mDigestStale;
+	/** 有效的修改记录，mCursor之后的为已撤销、可重做的记录 */
+	private final List<Record> mRecords = new ArrayList<Record>();
+	private int mCursor;
+	/** 日志文件中已失效的记录数(撤销/重做标记和被丢弃的记录) */
+	private int mDead;
+
+	private EditJournal(File target, Elf elf) throws IOException {
+		mTarget = target;
+		mFile = new File(target.getPath() + SUFFIX);
+		mElf = elf;
+		mDigest = target.equals(elf.getFile()) ? elf.getDigest() : ElfCache.digest(target);
+	}
+
+	/**
+	 * 打开文件对应的编辑日志并重放到elf上，日志与文件不匹配时丢弃旧日志，日志文件在第一次修改时才创建
+	 *
+	 * @param target
+	 *            被编辑的so文件
+	 * @param elf
+	 *            刚刚打开、尚未修改的elf
+	 */
+	public static EditJournal open(File target, Elf elf) throws IOException {
+		EditJournal journal = new EditJournal(target, elf);
+		if (journal.mFile.isFile() && !journal.load()) {
+			journal.discard();
+		} else if (journal.mDead > journal.mCursor) {
+			journal.compact();
+		}
+		elf.setJournal(journal);
+		return journal;
+	}
+
+	/** 读取日志并重放，返回false表示日志与文件不匹配 */
+	private boolean load() throws IOException {
+		byte[] data = Elf.readFile(mFile);
+		if (data.length < HEADER_SIZE) {
+			return false;
+		}
+		LEDataInputStream r = new LEDataInputStream(data);
+		if (r.readInt() != MAGIC || r.readInt() != VERSION) {
+			return false;
+		}
+		if (r.readLong() != mTarget.length() || r.readLong() != mTarget.lastModified()
+				|| r.readInt() != mDigest) {
+			return false;
+		}
+		try {
+			while (r.available() > 0) {
+				byte op = r.readByte();
+				if (op == OP_EDIT) {
+					int section = r.readInt();
+					int offset = r.readInt();
+					byte[] oldBytes = new byte[r.readInt()];
+					r.readFully(oldBytes);
+					byte[] newBytes = new byte[r.readInt()];
+					r.readFully(newBytes);
+					push(new Record(section, offset, oldBytes, newBytes));
+				} else if (op == OP_UNDO && mCursor > 0) {
+					mCursor--;
+					mDead += 2;
+				} else if (op == OP_REDO && mCursor < mRecords.size()) {
+					mCursor++;
+					mDead += 2;
+				} else {
+					return false;
+				}
+			}
+		} catch (EOFException e) {
+			// 最后一条记录写入时被中断，忽略该记录
+		}
+		for (int i = 0; i < mCursor; i++) {
+			Record record = mRecords.get(i);
+			if (!mElf.applyBytes(record.section, record.offset, record.oldBytes, record.newBytes)) {
+				// 回滚已重放的记录
+				while (i-- > 0) {
+					record = mRecords.get(i);
+					mElf.applyBytes(record.section, record.offset, record.newBytes, record.oldBytes);
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** 添加一条记录，丢弃已撤销的记录 */
+	private void push(Record record) {
+		while (mRecords.size() > mCursor) {
+			mRecords.remove(mRecords.size() - 1);
+			mDead++;
+		}
+		mRecords.add(record);
+		mCursor++;
+	}
+
+	/**
+	 * 记录一次修改，由Elf在字符串的值改变时调用
+	 */
+	void record(int section, ItemHelper item, String oldVal, String newVal) throws IOException {
+		record(section, item.offset, oldVal.getBytes(), newVal.getBytes());
+	}
+
+	/**
+	 * 记录一次修改
+	 */
+	void record(int section, int offset, byte[] oldBytes, byte[] newBytes) throws IOException {
+		if (Arrays.equals(oldBytes, newBytes)) {
+			return;
+		}
+		Record record = new Record(section, offset, oldBytes, newBytes);
+		push(record);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(17 + oldBytes.length + newBytes.length);
+		LEDataOutputStream out = new LEDataOutputStream(bos);
+		writeRecord(out, record);
+		out.close();
+		append(bos.toByteArray());
+	}
+
+	public boolean canUndo() {
+		return mCursor > 0;
+	}
+
+	public boolean canRedo() {
+		return mCursor < mRecords.size();
+	}
+
+	/**
+	 * 撤销最近一次修改
+	 *
+	 * @return 没有可撤销的修改时返回false
+	 */
+	public boolean undo() throws IOException {
+		if (!canUndo()) {
+			return false;
+		}
+		Record record = mRecords.get(mCursor - 1);
+		if (!mElf.applyBytes(record.section, record.offset, record.newBytes, record.oldBytes)) {
+			throw new IOException("Journal does not match the elf");
+		}
+		mCursor--;
+		mDead += 2;
+		append(new byte[] { OP_UNDO });
+		return true;
+	}
+
+	/**
+	 * 重做最近一次撤销的修改
+	 *
+	 * @return 没有可重做的修改时返回false
+	 */
+	public boolean redo() throws IOException {
+		if (!canRedo()) {
+			return false;
+		}
+		Record record = mRecords.get(mCursor);
+		if (!mElf.applyBytes(record.section, record.offset, record.oldBytes, record.newBytes)) {
+			throw new IOException("Journal does not match the elf");
+		}
+		mCursor++;
+		mDead += 2;
+		append(new byte[] { OP_REDO });
+		return true;
+	}
+
+	/** 当前有效的修改记录 */
+	public List<Record> getRecords() {
+		return mRecords.subList(0, mCursor);
+	}
+
+	/** 只保留有效的修改记录，重写日志文件 */
+	public void compact() throws IOException {
+		while (mRecords.size() > mCursor) {
+			mRecords.remove(mRecords.size() - 1);
+		}
+		mDead = 0;
+		rewrite();
+	}
+
+	/** 修改已保存到文件，删除日志 */
+	public void clear() {
+		discard();
+		mDigestStale = true;
+	}
+
+	/** 丢弃所有记录并删除日志文件 */
+	private void discard() {
+		mRecords.clear();
+		mCursor = 0;
+		mDead = 0;
+		mFile.delete();
+	}
+
+	private void rewrite() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		LEDataOutputStream out = new LEDataOutputStream(bos);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(mTarget.length());
+		out.writeLong(mTarget.lastModified());
+		if (mDigestStale) {
+			mDigest = ElfCache.digest(mTarget);
+			mDigestStale = false;
+		}
+		out.writeInt(mDigest);
+		for (int i = 0; i < mCursor; i++) {
+			writeRecord(out, mRecords.get(i));
+		}
+		out.close();
+		FileOutputStream fos = new FileOutputStream(mFile);
+		try {
+			bos.writeTo(fos);
+		} finally {
+			fos.close();
+		}
+	}
+
+	private static void writeRecord(LEDataOutputStream out, Record record) throws IOException {
+		out.writeByte(OP_EDIT);
+		out.writeInt(record.section);
+		out.writeInt(record.offset);
+		out.writeInt(record.oldBytes.length);
+		out.writeFully(record.oldBytes);
+		out.writeInt(record.newBytes.length);
+		out.writeFully(record.newBytes);
+	}
+
+	private void append(byte[] data) throws IOException {
+		if (!mFile.isFile()) {
+			// 第一次修改，建立日志文件，当前的有效记录都写在文件头后面
+			mDead = 0;
+			rewrite();
+			return;
+		}
+		FileOutputStream fos = new FileOutputStream(mFile, true);
+		try {
+			fos.write(data);
+		} finally {
+			fos.close();
+		}
+	}
+}
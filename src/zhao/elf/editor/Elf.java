@@ -33,21 +33,39 @@ package zhao.elf.editor;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UnknownFormatConversionException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 import android.annotation.SuppressLint;
 import zhao.elf.editor.IO.LEDataInputStream;
 import zhao.elf.editor.IO.LEDataOutputStream;
+import zhao.elf.editor.IO.RandomAccessInputStream;
+import zhao.elf.editor.IO.SharedByteArrayInputStream;
 
 public class Elf implements Closeable {
 	// art/runtime/elf.h
@@ -83,6 +101,12 @@ public class Elf implements Closeable {
 
 		abstract long getFlags();
 
+		abstract long getVaddr();
+
+		abstract long getFileSize();
+
+		abstract long getAlign();
+
 		String programType() {
 			switch (p_type) {
 			case PT_NULL:
@@ -106,7 +130,7 @@ public class Elf implements Closeable {
 	}
 
 	// Section header
-	public static abstract class Elf_Shdr {
+	public static abstract class Elf_Shdr implements Cloneable {
 		int sh_name; // Section name (index into string table)
 		int sh_type; // Section type (SHT_*)
 		int sh_link; // Section type-specific header table index link
@@ -116,6 +140,15 @@ public class Elf implements Closeable {
 		public abstract long getOffset();
 
 		public abstract int getSize();
+
+		/** 复制节区头部，字段都是基本类型 */
+		Elf_Shdr copy() {
+			try {
+				return (Elf_Shdr) clone();
+			} catch (CloneNotSupportedException e) {
+				throw new AssertionError(e);
+			}
+		}
 	}
 
 	// --- Begin symbol table ---
@@ -180,6 +213,21 @@ public class Elf implements Closeable {
 		public long getFlags() {
 			return p_flags;
 		}
+
+		@Override
+		long getVaddr() {
+			return p_vaddr & 0xffffffffL;
+		}
+
+		@Override
+		long getFileSize() {
+			return p_filesz & 0xffffffffL;
+		}
+
+		@Override
+		long getAlign() {
+			return p_align & 0xffffffffL;
+		}
 	}
 
 	static class Elf32_Shdr extends Elf_Shdr {
@@ -241,6 +289,21 @@ public class Elf implements Closeable {
 		public long getFlags() {
 			return p_flags;
 		}
+
+		@Override
+		long getVaddr() {
+			return p_vaddr;
+		}
+
+		@Override
+		long getFileSize() {
+			return p_filesz;
+		}
+
+		@Override
+		long getAlign() {
+			return p_align;
+		}
 	}
 
 	// Section header for ELF64 - same fields as ELF32, different types.
@@ -277,8 +340,9 @@ public class Elf implements Closeable {
 	public static class ItemHelper {
 		public String oldval;
 		public String newVal;
-		public byte[] data;
+		public int length; // 原字符串的字节数
 		public int sym_offset = -1; //符号索引
+		public int offset = -1; // 字符串在所属段中的偏移
 
 		public ItemHelper() {
 		}
@@ -306,6 +370,7 @@ public class Elf implements Closeable {
 	public static final String SHN_DYNSYM = ".dynsym";
 	public static final String SHN_DYNSTR = ".dynstr";
 	public static final String SHN_HASH = ".hash";
+	public static final String SHN_GNU_HASH = ".gnu.hash";
 
 	public static final String SHN_RODATA = ".rodata";
 
@@ -326,8 +391,12 @@ public class Elf implements Closeable {
 
 	final static int SHT_DYNAMIC = 6; // Information for dynamic linking.;
 
+	final static int SHT_NOBITS = 8; // Occupies no space in the file.
+
 	final static int SHT_DYNSYM = 11; // Symbol table.;
 
+	final static int SHT_GNU_HASH = 0x6ffffff6; // GNU-style hash table.
+
 	// --- Begin program header ---
 	// Segment types.
 	final static int PT_NULL = 0; // Unused segment.
@@ -340,6 +409,14 @@ public class Elf implements Closeable {
 	final static int PT_SHLIB = 5; // Reserved.
 	final static int PT_PHDR = 6; // The program header table itself.
 	final static int PT_TLS = 7; // The thread-local storage template.
+	// Dynamic table entry tags.
+	final static int DT_NULL = 0; // Marks end of dynamic array.
+	final static int DT_HASH = 4; // Address of symbol hash table.
+	final static int DT_STRTAB = 5; // Address of string table.
+	final static int DT_SYMTAB = 6; // Address of symbol table.
+	final static int DT_STRSZ = 10; // Total size of the string table.
+	final static int DT_SYMENT = 11; // Size of a symbol table entry.
+	final static int DT_GNU_HASH = 0x6ffffef5; // Address of GNU-style hash table.
 	// Segment flag bits.
 	final static int PF_X = 1; // Execute
 	final static int PF_W = 2; // Write
@@ -408,15 +485,43 @@ public class Elf implements Closeable {
 	}
 
 	public static byte[] readFile(File file) throws FileNotFoundException, IOException {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		InputStream is = new FileInputStream(file);
-		byte buffer[] = new byte[2048];
-		int count;
-		while ((count = is.read(buffer)) != -1) {
-			bos.write(buffer, 0, count);
+		try {
+			return readFully(is, file.length());
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * 读取输入流中的全部数据
+	 * 
+	 * @param length
+	 *            数据大小，已知时按该大小只分配一次内存，未知时传入-1
+	 */
+	public static byte[] readFully(InputStream is, long length) throws IOException {
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Too large to read into memory: " + length + " bytes");
+		}
+		if (length < 0) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte buffer[] = new byte[8192];
+			int count;
+			while ((count = is.read(buffer)) != -1) {
+				bos.write(buffer, 0, count);
+			}
+			return bos.toByteArray();
+		}
+		byte[] data = new byte[(int) length];
+		int count = 0;
+		while (count < data.length) {
+			int n = is.read(data, count, data.length - count);
+			if (n < 0) {
+				throw new EOFException("Expected " + length + " bytes, got " + count);
+			}
+			count += n;
 		}
-		is.close();
-		return bos.toByteArray();
+		return data;
 	}
 
 	public List<ItemHelper> dy_items, ro_items;
@@ -424,36 +529,159 @@ public class Elf implements Closeable {
 	final byte[] e_ident = new byte[EI_NIDENT]; // ELF Identification bytes
 	private LEDataInputStream mReader;
 
-	private final Ehdr mHeader;
+	private Ehdr mHeader;
+
+	private Elf_Shdr[] mSectionHeaders;
 
-	private final Elf_Shdr[] mSectionHeaders;
+	private SectionDirectory mSections;
 
-	private byte[] mStringTable;
+	private ByteBuffer mStringTable;
 
-	private byte mRoDataStringTable[];
+	private ByteBuffer mRoDataStringTable;
 	// private List<String> mRoDataStrings;
 	Elf_Phdr[] mProgHeaders;
 	Elf_Sym[] mDynamicSymbols;
 	Elf_Sym[] mHashSymbols;
 
-	byte[] mDynStringTable;
+	ByteBuffer mDynStringTable;
 
 	byte[] mDynHashTable;
 
-	private int num_buckets;
+	int num_buckets;
 
-	private int num_chains;
+	int num_chains;
 
 	// These could probably be memoized.
 	private int buckets[];
 
 	private int chains[];
 
+	private boolean mSymbolsLoaded; // .hash和.dynsym是否已经读取
+
+	private Map<String, Integer> mSymbolIndex; // 没有.hash时按名字查找符号，用到时才建立
+
 	private boolean error; // 解析时是否有错误
 
+	private boolean mFromCache; // 是否由缓存恢复
+
+	private boolean mSectionless; // 是否通过PT_DYNAMIC解析(没有可用的节区头部表)
+
+	private EditJournal mJournal; // 编辑日志
+
+	private SymbolTable mSymbolTable; // 静态符号表，用到时才建立
+
+	private Map<Long, ItemHelper> mItemIndex; // (段索引, 偏移) -> 字符串
+
+	/** 内存预算，文件超过预算时按窗口处理，不整个读入内存 */
+	private static long sMemoryBudget = Runtime.getRuntime().maxMemory() / 4;
+
+	/** 解析时并行解码各段的线程数 */
+	private static int sParseThreads = 1;
+
+	/** .rodata字符串的最小长度，更短的字符串不建立条目 */
+	private static int sRoDataMinLength = 0;
+
+	/** 放入写入队列的每块数据的最大大小，也是进度回调的粒度 */
+	private static final int WRITE_CHUNK = 256 * 1024;
+
+	/** 写入线程一次聚集写入最多合并的块数 */
+	private static final int WRITE_BATCH = 4;
+
+	/** 写入队列中最多的块数 */
+	private static final int WRITE_QUEUE = 16;
+
+	/** 重新生成的段最多同时占用的缓冲块数，每块{@link #WRITE_CHUNK}字节 */
+	private static final int WRITE_BUFFERS = 8;
+
+	/** .rodata字符串中可打印字符的最小比例，低于该比例的视为二进制数据 */
+	private static float sRoDataPrintableRatio = 0;
+
+	/** 新建的Elf默认使用的统计监听器 */
+	private static PhaseListener sDefaultListener = PhaseListener.NONE;
+
+	private PhaseListener mListener = sDefaultListener; // 各阶段耗时统计
+
+	private final File mFile; // 源文件，不是从文件打开时为null
+
+	private int mDigest; // 打开文件时计算的ElfCache.digest，缓存和编辑日志共用
+
+	/**
+	 * 从输入流中余下的数据解析，{@link SharedByteArrayInputStream}直接使用它的数组，不复制数据
+	 */
 	public Elf(ByteArrayInputStream bis) throws IOException, UnknownFormatConversionException {
-		dy_items = new ArrayList<ItemHelper>();
-		final LEDataInputStream r = mReader = new LEDataInputStream(bis);
+		this(new LEDataInputStream(remaining(bis)), (ElfCache) null, (File) null);
+	}
+
+	/** 读完输入流，返回余下的数据 */
+	private static ByteBuffer remaining(ByteArrayInputStream bis) throws IOException {
+		if (bis instanceof SharedByteArrayInputStream) {
+			ByteBuffer data = ((SharedByteArrayInputStream) bis).remaining();
+			bis.skip(data.remaining());
+			return data;
+		}
+		return ByteBuffer.wrap(readFully(bis, bis.available()));
+	}
+
+	/**
+	 * 从内存中的数据解析，不复制数据
+	 */
+	public Elf(byte[] data) throws IOException, UnknownFormatConversionException {
+		this(new LEDataInputStream(data), (ElfCache) null, (File) null);
+	}
+
+	/**
+	 * 从ByteBuffer(如映射的文件)中position到limit的数据解析，不复制数据
+	 */
+	public Elf(ByteBuffer data) throws IOException, UnknownFormatConversionException {
+		this(new LEDataInputStream(data), (ElfCache) null, (File) null);
+	}
+
+	/**
+	 * @param cache
+	 *            有效的解析缓存，不为null时跳过符号表与字符串的解码
+	 */
+	private Elf(LEDataInputStream reader, ElfCache cache, File file) throws IOException,
+			UnknownFormatConversionException {
+		mFile = file;
+		long parseTime = begin(PhaseListener.Phase.PARSE), parseAlloc = allocated();
+		try {
+			dy_items = new ArrayList<ItemHelper>();
+			mReader = reader;
+			long time = begin(PhaseListener.Phase.HEADER), alloc = allocated();
+			try {
+				cache = readHeaders(cache);
+			} finally {
+				report(PhaseListener.Phase.HEADER, time, alloc, headerSize());
+			}
+			try {
+				if (cache != null) {
+					time = begin(PhaseListener.Phase.CACHE);
+					alloc = allocated();
+					try {
+						restoreFromCache(cache, dy_items);
+					} finally {
+						report(PhaseListener.Phase.CACHE, time, alloc,
+								mDynStringTable == null ? 0 : mDynStringTable.capacity());
+					}
+					mFromCache = true;
+				} else if (!readMore(dy_items)) {
+					error = true;
+				}
+			} catch (OutOfMemoryError e) {
+				error = true;
+			}
+		} finally {
+			report(PhaseListener.Phase.PARSE, parseTime, parseAlloc, reader.size);
+		}
+	}
+
+	/**
+	 * 读取文件头、程序头部表和节区头部表
+	 *
+	 * @return 与节区头部表一致、仍然可用的缓存，否则为null
+	 */
+	private ElfCache readHeaders(ElfCache cache) throws IOException {
+		final LEDataInputStream r = mReader;
 		r.readFully(e_ident);
 		if (!checkMagic()) {
 			throw new UnknownFormatConversionException("Invalid elf magic");
@@ -489,79 +717,125 @@ public class Elf implements Closeable {
 		h.e_shnum = r.readShort();
 		h.e_shstrndx = r.readShort();
 
-		mSectionHeaders = new Elf_Shdr[h.e_shnum];
-		for (int i = 0; i < h.e_shnum; i++) {
-			final long offset = h.getSectionOffset() + (i * h.e_shentsize);
-			// Logger.write(" h.getSectionOffset()=" + h.getSectionOffset() +
-			// "\n");
-			// Logger.write("h.e_shentsize=" + h.e_shentsize + "\n");
-			r.seek(offset);
-			if (is64bit) {
-				Elf64_Shdr secHeader = new Elf64_Shdr();
-				secHeader.sh_name = r.readInt();
-				secHeader.sh_type = r.readInt();
-				secHeader.sh_flags = r.readLong();
-				secHeader.sh_addr = r.readLong();
-				secHeader.sh_offset = r.readLong();
-				secHeader.sh_size = r.readLong();
-				secHeader.sh_link = r.readInt();
-				secHeader.sh_info = r.readInt();
-				secHeader.sh_addralign = r.readLong();
-				secHeader.sh_entsize = r.readLong();
-				secHeader.index = i;
-				mSectionHeaders[i] = secHeader;
+		readProgHeaders();
+		Elf_Shdr[] sections = null;
+		if (hasSectionHeaders()) {
+			if (cache != null && cache.sections.length == h.e_shnum) {
+				sections = cache.restoreSections(is64bit);
 			} else {
-				Elf32_Shdr secHeader = new Elf32_Shdr();
-				secHeader.sh_name = r.readInt();
-				secHeader.sh_type = r.readInt();
-				secHeader.sh_flags = r.readInt();
-				secHeader.sh_addr = r.readInt();
-				secHeader.sh_offset = r.readInt();
-				secHeader.sh_size = r.readInt();
-				secHeader.sh_link = r.readInt();
-				secHeader.sh_info = r.readInt();
-				secHeader.sh_addralign = r.readInt();
-				secHeader.sh_entsize = r.readInt();
-				secHeader.index = i;
-				mSectionHeaders[i] = secHeader;
+				cache = null;
+				sections = readSectionHeaders();
 			}
-		}
-		if (h.e_shstrndx > -1 && h.e_shstrndx < mSectionHeaders.length) {
-			Elf_Shdr strSec = mSectionHeaders[h.e_shstrndx];
+			Elf_Shdr strSec = sections[h.e_shstrndx];
 			// Logger.write("lastoff=" +strSec.getOffset() + "\n" );
-			if (strSec.sh_type == SHT_STRTAB) {
-				int strSecSize = strSec.getSize();
-				mStringTable = new byte[strSecSize];
-				r.seek(strSec.getOffset());
-				r.readFully(mStringTable);
-				for (Elf_Shdr sec : mSectionHeaders) {
-					// Logger.write(getString(sec.sh_name));
-					System.out.println(getString(sec.sh_name));
+			if (strSec.sh_type == SHT_STRTAB && strSec.getOffset() + strSec.getSize() <= r.size) {
+				mStringTable = r.slice(strSec.getOffset(), strSec.getSize());
+				mSections = new SectionDirectory(this, sections);
+				if (mSections.getFirstByType(SHT_DYNSYM) == null && findProgHeader(PT_DYNAMIC) != null) {
+					sections = null; // 节区头部表不完整，改用动态段
 				}
 			} else {
-				throw new UnknownFormatConversionException("Wrong string section e_shstrndx=" + h.e_shstrndx);
+				sections = null;
 			}
-		} else {
-			throw new UnknownFormatConversionException("Invalid e_shstrndx=" + h.e_shstrndx);
 		}
-		try {
-			if (!readMore(dy_items)) {
-				error = true;
+		if (sections == null) {
+			// 节区头部表被去除或者被破坏，通过PT_DYNAMIC定位动态符号表
+			if (findProgHeader(PT_DYNAMIC) == null) {
+				throw new UnknownFormatConversionException("Invalid e_shstrndx=" + h.e_shstrndx);
 			}
-		} catch (OutOfMemoryError e) {
-			error = true;
+			cache = null;
+			sections = readDynamicSections();
+			mSections = new SectionDirectory(this, sections);
+			mSectionless = true;
+		}
+		mSectionHeaders = sections;
+		return cache;
+	}
+
+	/** 文件头、程序头部表、节区头部表和节区名称表的大小 */
+	private long headerSize() {
+		final Ehdr h = mHeader;
+		if (h == null) {
+			return 0;
 		}
+		return h.e_ehsize + h.e_phnum * h.e_phentsize + h.e_shnum * h.e_shentsize
+				+ (mStringTable == null ? 0 : mStringTable.capacity());
+	}
+
+	/**
+	 * 从大小已知的输入流(如content URI)解析，按该大小只分配一次内存
+	 */
+	public Elf(InputStream in, long length) throws IOException, UnknownFormatConversionException {
+		this(new LEDataInputStream(readFully(in, length)), (ElfCache) null, (File) null);
 	}
 
 	public Elf(ByteArrayInputStream bis, ResourceCallBack callBack) throws IOException, UnknownFormatConversionException {
 		this(bis);
+		report(callBack);
+	}
+
+	public Elf(File file, ResourceCallBack callBack) throws IOException, UnknownFormatConversionException {
+		this(file);
+		report(callBack);
+	}
+
+	/**
+	 * 打开文件，同目录下存在有效的解析缓存时直接使用缓存，否则解析后写入缓存
+	 */
+	public Elf(File file) throws IOException, UnknownFormatConversionException {
+		this(open(file), file, ElfCache.digest(file));
+		if (!mFromCache && !error && !mSectionless) {
+			ElfCache.save(file, this);
+		}
+	}
+
+	private Elf(LEDataInputStream reader, File file, int digest) throws IOException,
+			UnknownFormatConversionException {
+		this(reader, ElfCache.load(file, digest), file);
+		mDigest = digest;
+	}
+
+	/**
+	 * 文件不超过内存预算时整个读入内存，否则只保留读取窗口
+	 */
+	private static LEDataInputStream open(File file) throws IOException {
+		if (file.length() > sMemoryBudget) {
+			return new LEDataInputStream(new RandomAccessInputStream(file), file.length());
+		}
+		return new LEDataInputStream(readFile(file));
+	}
+
+	/**
+	 * 设置内存预算，之后打开的文件超过预算时按窗口处理:
+	 * 文件不再整个读入内存，.rodata等较大的段映射到内存而不复制到堆上
+	 * 保存时不论是否按窗口处理，重新生成的段都分块写出，同时最多占用{@link #WRITE_BUFFERS}个缓冲块
+	 */
+	public static void setMemoryBudget(long budget) {
+		sMemoryBudget = budget;
+	}
+
+	public static long getMemoryBudget() {
+		return sMemoryBudget;
+	}
+
+	/** 是否按窗口处理 */
+	public boolean isWindowed() {
+		return !mReader.isInMemory();
+	}
+
+	public Elf(String file) throws IOException, UnknownFormatConversionException {
+		this(new File(file));
+	}
+
+	/** 将解析出的字符串回调给界面 */
+	private void report(ResourceCallBack callBack) {
 		for (ItemHelper item : this.dy_items) {
 			ResourceHelper helper = new ResourceHelper();
 			helper.VALUE = item.oldval;
 			helper.TYPE = "dynstr";
 			callBack.back(helper);
 		}
-		if (this.mRoDataStringTable != null) {
+		if (this.ro_items != null) {
 			for (ItemHelper item : this.ro_items) {
 				ResourceHelper helper = new ResourceHelper();
 				helper.VALUE = item.oldval;
@@ -569,15 +843,6 @@ public class Elf implements Closeable {
 				callBack.back(helper);
 			}
 		}
-
-	}
-
-	public Elf(File file) throws IOException, UnknownFormatConversionException {
-		this(new ByteArrayInputStream(readFile(file)));
-	}
-
-	public Elf(String file) throws IOException, UnknownFormatConversionException {
-		this(new File(file));
 	}
 
 	public Elf(String file, boolean closeNow) throws IOException, UnknownFormatConversionException {
@@ -596,7 +861,7 @@ public class Elf implements Closeable {
 		mReader.close();
 	}
 
-	private String fillString(String string, int length) {
+	static String fillString(String string, int length) {
 		StringBuilder sb = new StringBuilder();
 		sb.append(string);
 		if (string.length() < length) {
@@ -611,12 +876,17 @@ public class Elf implements Closeable {
 	/**
 	 * 查找是否有这个符号,同时返回索引
 	 * */
-	public int find(String str) {
+	public int find(String str) throws IOException {
+		if (!mSymbolsLoaded) {
+			loadSymbols();
+		}
+		if (buckets == null) {
+			return findByName(str);
+		}
 		long hash = ELFHash(str);
 		for (int i = buckets[(int) (hash % num_buckets)]; i != 0; i = chains[i]) {
 			Elf_Sym ds = mDynamicSymbols[i];
 			String string = getDynString(ds.st_name);
-			System.out.println(string);
 			if (string.equals(str)) {
 				//Logger.write("str=" + str + " " + "pos=" + i + "\n");
 				return i;
@@ -625,6 +895,36 @@ public class Elf implements Closeable {
 		return -1;
 	}
 	
+	/** 由缓存恢复时符号表未解码，查找前再读取 */
+	private void loadSymbols() throws IOException {
+		readHash();
+		Elf_Shdr dynsym = getSectionByName(SHN_DYNSYM);
+		if (dynsym != null) {
+			readDynSymbols(dynsym);
+		}
+		mSymbolsLoaded = true;
+	}
+
+	/** 没有.hash(如只有.gnu.hash)时，用一次建立的名字到索引的映射查找 */
+	private int findByName(String str) {
+		if (mDynamicSymbols == null || mDynStringTable == null) {
+			return -1;
+		}
+		if (mSymbolIndex == null) {
+			final int capacity = mDynStringTable.capacity();
+			Map<String, Integer> index = new HashMap<String, Integer>(mDynamicSymbols.length * 2);
+			for (int i = mDynamicSymbols.length - 1; i > 0; i--) {
+				int name = mDynamicSymbols[i].st_name;
+				if (name != SHN_UNDEF && name >= 0 && name < capacity) {
+					index.put(stringAt(mDynStringTable, name), i);
+				}
+			}
+			mSymbolIndex = index;
+		}
+		Integer i = mSymbolIndex.get(str);
+		return i == null ? -1 : i;
+	}
+
 	final byte getDataEncoding() {
 		return e_ident[EI_DATA];
 	}
@@ -633,12 +933,7 @@ public class Elf implements Closeable {
 		if (index == SHN_UNDEF) {
 			return "SHN_UNDEF";
 		}
-		int start = index;
-		int end = index;
-		while (mDynStringTable[end] != '\0') {
-			end++;
-		}
-		return new String(mDynStringTable, start, end - start);
+		return stringAt(mDynStringTable, index);
 	}
 
 	final byte getFileClass() {
@@ -649,17 +944,25 @@ public class Elf implements Closeable {
 		return mHeader;
 	}
 
+	/** 是否通过程序头部表中的PT_DYNAMIC解析，此时只有.dynsym、.dynstr和.hash可用 */
+	public boolean isSectionless() {
+		return mSectionless;
+	}
+
+	public boolean isFromCache() {
+		return mFromCache;
+	}
+
 	public LEDataInputStream getReader() {
 		return mReader;
 	}
 
 	public final Elf_Shdr getSectionByName(String name) {
-		for (Elf_Shdr sec : mSectionHeaders) {
-			if (name.equals(getString(sec.sh_name))) {
-				return sec;
-			}
-		}
-		return null;
+		return mSections.get(name);
+	}
+
+	public SectionDirectory getSectionDirectory() {
+		return mSections;
 	}
 
 	public Elf_Shdr[] getSectionHeaders() {
@@ -670,12 +973,30 @@ public class Elf implements Closeable {
 		if (index == SHN_UNDEF) {
 			return "SHN_UNDEF";
 		}
-		int start = index;
-		int end = index;
-		while (mStringTable[end] != '\0') {
+		return stringAt(mStringTable, index);
+	}
+
+	/** 读取字符串表中start处以'\0'结尾的字符串 */
+	static String stringAt(ByteBuffer table, int start) {
+		int end = start;
+		while (end < table.capacity() && table.get(end) != 0) {
 			end++;
 		}
-		return new String(mStringTable, start, end - start);
+		return stringAt(table, start, end - start);
+	}
+
+	/** 读取字符串表中的一段数据作为字符串 */
+	static String stringAt(ByteBuffer table, int offset, int length) {
+		return new String(bytesAt(table, offset, length));
+	}
+
+	/** 复制表中的一段数据 */
+	static byte[] bytesAt(ByteBuffer table, int offset, int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = table.get(offset + i);
+		}
+		return data;
 	}
 
 	public final boolean is64bit() {
@@ -686,134 +1007,572 @@ public class Elf implements Closeable {
 		return getDataEncoding() == 1;
 	}
 
-	private boolean readMore(List<ItemHelper> items) throws IOException {
+	/** 读取节区头部表 */
+	private Elf_Shdr[] readSectionHeaders() throws IOException {
 		final Ehdr h = mHeader;
 		final LEDataInputStream r = mReader;
 		final boolean is64bit = is64bit();
-		
-		//读取Hash表
-		Elf_Shdr dyhash = getSectionByName(SHN_HASH);
-		if (dyhash != null) {
-			r.seek(dyhash.getOffset());
-			num_buckets = r.readInt();
-			num_chains = r.readInt();
-			buckets = r.readIntArray(num_buckets);
-			chains = r.readIntArray(num_chains);
-			int actual = num_buckets * 4 + num_chains * 4 + 8;
-			if (dyhash.getSize() != actual) {
-				throw new IOException("Error reading string table (read " + actual + "bytes, expected to " + "read "
-						+ dyhash.getSize() + "bytes).");
-			}
-		}
-		
-		Elf_Shdr dynsym = getSectionByName(SHN_DYNSYM);
-		if (dynsym != null) {
-			r.seek(dynsym.getOffset());
-			int len = dynsym.getSize() / (is64bit ? 24 : 16); // sizeof
-																// Elf_Sym
-			mDynamicSymbols = new Elf_Sym[len];
-
-			for (int i = 0; i < len; i++) {
-				if (is64bit) {
-					Elf64_Sym dsym = new Elf64_Sym();
-					dsym.st_name = r.readInt();
-					dsym.st_info = (char) r.readByte();
-					dsym.st_other = (char) r.readByte();
-					dsym.st_value = r.readLong();
-					dsym.st_size = r.readLong();
-					dsym.st_shndx = r.readShort();
-					mDynamicSymbols[i] = dsym;
-				} else {
-					Elf32_Sym dsym = new Elf32_Sym();
-					dsym.st_name = r.readInt();
-					dsym.st_value = r.readInt();
-					dsym.st_size = r.readInt();
-					dsym.st_info = (char) r.readByte();
-					dsym.st_other = (char) r.readByte();
-					dsym.st_shndx = r.readShort();
-					mDynamicSymbols[i] = dsym;
-
-					/*
-					 * if (dsym.st_size > 0) { Elf_Shdr sec =
-					 * mSectionHeaders[dsym.st_shndx]; }
-					 */
-				}
-			}
-
-			Elf_Shdr dynLinkSec = mSectionHeaders[dynsym.sh_link];
-			r.seek(dynLinkSec.getOffset());
-			mDynStringTable = new byte[dynLinkSec.getSize()];
-			r.readFully(mDynStringTable);
-
-			String string = new String(mDynStringTable);
-			String[] mDyStrs = string.split("\0");
-			for (String mDyStr : mDyStrs) {
-				if (mDyStr.length() == 0) {
-					continue;
-				}
-				ItemHelper item = new ItemHelper();
-				item.oldval = mDyStr;
-				items.add(item);
-				item.sym_offset = find(mDyStr);
-			}
-		}
-
+		Elf_Shdr[] sections = new Elf_Shdr[h.e_shnum];
+		for (int i = 0; i < h.e_shnum; i++) {
 
-		mProgHeaders = new Elf_Phdr[h.e_phnum];
-		for (int i = 0; i < h.e_phnum; i++) {
-			final long offset = h.getProgramOffset() + (i * h.e_phentsize);
+			final long offset = h.getSectionOffset() + (i * h.e_shentsize);
+			// Logger.write(" h.getSectionOffset()=" + h.getSectionOffset() +
+			// "\n");
+			// Logger.write("h.e_shentsize=" + h.e_shentsize + "\n");
 			r.seek(offset);
 			if (is64bit) {
-				Elf64_Phdr progHeader = new Elf64_Phdr();
-				progHeader.p_type = r.readInt();
-				progHeader.p_offset = r.readInt();
-				progHeader.p_vaddr = r.readLong();
-				progHeader.p_paddr = r.readLong();
-				progHeader.p_filesz = r.readLong();
-				progHeader.p_memsz = r.readLong();
-				progHeader.p_flags = r.readLong();
-				progHeader.p_align = r.readLong();
-				mProgHeaders[i] = progHeader;
+				Elf64_Shdr secHeader = new Elf64_Shdr();
+				secHeader.sh_name = r.readInt();
+				secHeader.sh_type = r.readInt();
+				secHeader.sh_flags = r.readLong();
+				secHeader.sh_addr = r.readLong();
+				secHeader.sh_offset = r.readLong();
+				secHeader.sh_size = r.readLong();
+				secHeader.sh_link = r.readInt();
+				secHeader.sh_info = r.readInt();
+				secHeader.sh_addralign = r.readLong();
+				secHeader.sh_entsize = r.readLong();
+				secHeader.index = i;
+				sections[i] = secHeader;
 			} else {
-				Elf32_Phdr progHeader = new Elf32_Phdr();
-				progHeader.p_type = r.readInt();
-				progHeader.p_offset = r.readInt();
-				progHeader.p_vaddr = r.readInt();
-				progHeader.p_paddr = r.readInt();
-				progHeader.p_filesz = r.readInt();
-				progHeader.p_memsz = r.readInt();
-				progHeader.p_flags = r.readInt();
-				progHeader.p_align = r.readInt();
-				mProgHeaders[i] = progHeader;
+				Elf32_Shdr secHeader = new Elf32_Shdr();
+				secHeader.sh_name = r.readInt();
+				secHeader.sh_type = r.readInt();
+				secHeader.sh_flags = r.readInt();
+				secHeader.sh_addr = r.readInt();
+				secHeader.sh_offset = r.readInt();
+				secHeader.sh_size = r.readInt();
+				secHeader.sh_link = r.readInt();
+				secHeader.sh_info = r.readInt();
+				secHeader.sh_addralign = r.readInt();
+				secHeader.sh_entsize = r.readInt();
+				secHeader.index = i;
+				sections[i] = secHeader;
 			}
 		}
+		return sections;
+	}
 
-		Elf_Shdr roData = getSectionByName(SHN_RODATA);
-		if (roData != null) {
-			r.seek(roData.getOffset());
-			mRoDataStringTable = new byte[roData.getSize()];
-			r.readFully(mRoDataStringTable);
-			ro_items = new ArrayList<ItemHelper>();
-
-			int end = 0;
-			while (end != mRoDataStringTable.length) {
-				while (end != mRoDataStringTable.length && mRoDataStringTable[end++] == 0)
-					; // 去除开头可能的结尾
-				int start = end;
-				//对于字符串末尾有空格的情况，也要一同取出，空格ascii是20,而0是结尾
-				while (end != mRoDataStringTable.length && mRoDataStringTable[end++] != 0)
-					;
-				ItemHelper item = new ItemHelper();
-				item.oldval = new String(mRoDataStringTable, start - 1, end - start);
-				item.data = new byte[end - start];
-				System.arraycopy(mRoDataStringTable, start - 1, item.data, 0, item.data.length);
-				ro_items.add(item);
+	private boolean readMore(List<ItemHelper> items) throws IOException {
+		final Elf_Shdr dynsym = getSectionByName(SHN_DYNSYM);
+		final Elf_Shdr roData = getSectionByName(SHN_RODATA);
+		final List<ItemHelper> strings = new ArrayList<ItemHelper>();
+		// 以下各段互不依赖，可以并行解码
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(4);
+		tasks.add(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				//读取Hash表
+				long time = begin(PhaseListener.Phase.HASH), alloc = allocated();
+				try {
+					readHash();
+				} finally {
+					report(PhaseListener.Phase.HASH, time, alloc, num_buckets * 4 + num_chains * 4 + 8);
+				}
+				return null;
 			}
+		});
+		if (dynsym != null) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					long time = begin(PhaseListener.Phase.DYNSYM), alloc = allocated();
+					try {
+						readDynSymbols(dynsym);
+					} finally {
+						report(PhaseListener.Phase.DYNSYM, time, alloc, dynsym.getSize());
+					}
+					return null;
+				}
+			});
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					long time = begin(PhaseListener.Phase.DYNSTR), alloc = allocated();
+					try {
+						readDynStringTable(dynsym);
+
+						// 按'\0'切分字符串，同时记录每个字符串的偏移
+						final ByteBuffer table = mDynStringTable;
+						final int length = table.capacity();
+						int start = 0;
+						for (int end = 0; end <= length; end++) {
+							if (end != length && table.get(end) != 0) {
+								continue;
+							}
+							if (end > start) {
+								ItemHelper item = new ItemHelper();
+								item.oldval = stringAt(table, start, end - start);
+								item.offset = start;
+								strings.add(item);
+							}
+							start = end + 1;
+						}
+					} finally {
+						report(PhaseListener.Phase.DYNSTR, time, alloc,
+								mDynStringTable == null ? 0 : mDynStringTable.capacity());
+					}
+					return null;
+				}
+			});
+		}
+		tasks.add(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				long time = begin(PhaseListener.Phase.RODATA), alloc = allocated();
+				try {
+					if (roData != null) {
+						readRoData(roData);
+					}
+				} finally {
+					report(PhaseListener.Phase.RODATA, time, alloc, roData == null ? 0 : roData.getSize());
+				}
+				return null;
+			}
+		});
+		invokeAll(tasks, sParseThreads);
+		mSymbolsLoaded = true;
+
+		// 所有段解码完成后再查找符号索引
+		long time = begin(PhaseListener.Phase.SYMBOLS), alloc = allocated();
+		try {
+			for (ItemHelper item : strings) {
+				items.add(item);
+				item.sym_offset = find(item.oldval);
+			}
+		} finally {
+			report(PhaseListener.Phase.SYMBOLS, time, alloc, mDynStringTable == null ? 0 : mDynStringTable.capacity());
 		}
 		return true;
 	}
 
-	public long ELFHash(String strUri) {
+	/** 读取并切分.rodata */
+	private void readRoData(Elf_Shdr roData) throws IOException {
+		readRoDataTable(roData);
+		ro_items = new RoDataScanner(mRoDataStringTable, sRoDataMinLength, sRoDataPrintableRatio).scan(sParseThreads);
+	}
+
+	/**
+	 * 执行解码任务，解析线程数大于1时在线程池中并行执行，否则在当前线程依次执行
+	 */
+	static void invokeAll(List<Callable<Void>> tasks, int threads) throws IOException {
+		threads = Math.min(threads, tasks.size());
+		if (threads <= 1) {
+			for (Callable<Void> task : tasks) {
+				try {
+					task.call();
+				} catch (IOException | RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException(e.toString());
+				}
+			}
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (Future<Void> future : executor.invokeAll(tasks)) {
+				join(future);
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e.toString());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/** 等待后台任务结束，把任务中的异常原样抛出 */
+	static <T> T join(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException(e.toString());
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause.toString());
+		}
+	}
+
+	/**
+	 * 设置解析时并行解码.hash、.dynsym、.dynstr和.rodata的线程数，默认为1，即在当前线程依次解码
+	 */
+	public static void setParseThreads(int threads) {
+		sParseThreads = Math.max(1, threads);
+	}
+
+	public static int getParseThreads() {
+		return sParseThreads;
+	}
+
+	/**
+	 * 设置.rodata字符串的过滤条件，长度小于minLength或者可打印字符(包括合法的UTF-8多字节字符)比例低于printableRatio的字符串不建立条目
+	 * 默认都为0，即不过滤；解析缓存记录了过滤条件，条件改变后缓存自动失效
+	 */
+	public static void setRoDataFilter(int minLength, float printableRatio) {
+		sRoDataMinLength = Math.max(0, minLength);
+		sRoDataPrintableRatio = Math.max(0, Math.min(1, printableRatio));
+	}
+
+	public static int getRoDataMinLength() {
+		return sRoDataMinLength;
+	}
+
+	public static float getRoDataPrintableRatio() {
+		return sRoDataPrintableRatio;
+	}
+
+	/**
+	 * 根据缓存中记录的偏移表恢复字符串条目，不再切分字符串和查找符号
+	 */
+	private void restoreFromCache(ElfCache cache, List<ItemHelper> items) throws IOException {
+		num_buckets = cache.num_buckets;
+		num_chains = cache.num_chains;
+
+		Elf_Shdr dynsym = getSectionByName(SHN_DYNSYM);
+		if (dynsym != null) {
+			readDynStringTable(dynsym);
+			for (int i = 0; i < cache.dyOffsets.length; i++) {
+				ItemHelper item = new ItemHelper();
+				item.oldval = stringAt(mDynStringTable, cache.dyOffsets[i]);
+				item.offset = cache.dyOffsets[i];
+				item.sym_offset = cache.dySymbols[i];
+				items.add(item);
+			}
+		}
+
+		Elf_Shdr roData = getSectionByName(SHN_RODATA);
+		if (roData != null && cache.roOffsets != null) {
+			readRoDataTable(roData);
+			ro_items = new ArrayList<ItemHelper>(cache.roOffsets.length);
+			for (int i = 0; i < cache.roOffsets.length; i++) {
+				ro_items.add(newRoDataItem(cache.roOffsets[i], cache.roLengths[i]));
+			}
+		}
+	}
+
+	/** 读取符号hash表 */
+	private void readHash() throws IOException {
+		final LEDataInputStream r = mReader;
+		Elf_Shdr dyhash = getSectionByName(SHN_HASH);
+		if (dyhash != null) {
+			final long offset = dyhash.getOffset();
+			num_buckets = r.readIntAt(offset);
+			num_chains = r.readIntAt(offset + 4);
+			buckets = r.readIntArrayAt(offset + 8, num_buckets);
+			chains = r.readIntArrayAt(offset + 8 + num_buckets * 4L, num_chains);
+			int actual = num_buckets * 4 + num_chains * 4 + 8;
+			if (dyhash.getSize() != actual) {
+				throw new IOException("Error reading string table (read " + actual + "bytes, expected to " + "read "
+						+ dyhash.getSize() + "bytes).");
+			}
+		}
+	}
+
+	/** 读取动态符号表 */
+	private void readDynSymbols(Elf_Shdr dynsym) throws IOException {
+		final boolean is64bit = is64bit();
+		final int size = is64bit ? 24 : 16; // sizeof Elf_Sym
+		int len = dynsym.getSize() / size;
+		// 整个符号表一次读取，再按偏移解码
+		final ByteBuffer b = mReader.slice(dynsym.getOffset(), len * size);
+		mDynamicSymbols = new Elf_Sym[len];
+
+		for (int i = 0; i < len; i++) {
+			final int base = i * size;
+			if (is64bit) {
+				Elf64_Sym dsym = new Elf64_Sym();
+				dsym.st_name = b.getInt(base);
+				dsym.st_info = (char) (b.get(base + 4) & 0xff);
+				dsym.st_other = (char) (b.get(base + 5) & 0xff);
+				dsym.st_shndx = b.getShort(base + 6);
+				dsym.st_value = b.getLong(base + 8);
+				dsym.st_size = b.getLong(base + 16);
+				mDynamicSymbols[i] = dsym;
+			} else {
+				Elf32_Sym dsym = new Elf32_Sym();
+				dsym.st_name = b.getInt(base);
+				dsym.st_value = b.getInt(base + 4);
+				dsym.st_size = b.getInt(base + 8);
+				dsym.st_info = (char) (b.get(base + 12) & 0xff);
+				dsym.st_other = (char) (b.get(base + 13) & 0xff);
+				dsym.st_shndx = b.getShort(base + 14);
+				mDynamicSymbols[i] = dsym;
+
+				/*
+				 * if (dsym.st_size > 0) { Elf_Shdr sec =
+				 * mSectionHeaders[dsym.st_shndx]; }
+				 */
+			}
+		}
+	}
+
+	/** 读取动态符号表关联的字符串表 */
+	private void readDynStringTable(Elf_Shdr dynsym) throws IOException {
+		final LEDataInputStream r = mReader;
+		Elf_Shdr dynLinkSec = mSectionHeaders[dynsym.sh_link];
+		mDynStringTable = r.slice(dynLinkSec.getOffset(), dynLinkSec.getSize());
+	}
+
+	/** 读取程序头部表 */
+	private void readProgHeaders() throws IOException {
+		final Ehdr h = mHeader;
+		// 整个程序头部表一次读取，再按偏移解码
+		mProgHeaders = readProgHeaders(mReader.slice(h.getProgramOffset(), h.e_phnum * h.e_phentsize), h.e_phnum,
+				h.e_phentsize, is64bit());
+	}
+
+	/**
+	 * 解码程序头部表，{@link ElfVerifier}也用它读取输出文件
+	 * @param b 程序头部表
+	 */
+	static Elf_Phdr[] readProgHeaders(ByteBuffer b, int phnum, int phentsize, boolean is64bit) {
+		Elf_Phdr[] headers = new Elf_Phdr[phnum];
+		for (int i = 0; i < phnum; i++) {
+			final int base = i * phentsize;
+			if (is64bit) {
+				Elf64_Phdr progHeader = new Elf64_Phdr();
+				progHeader.p_type = b.getInt(base);
+				progHeader.p_flags = b.getInt(base + 4); // Elf64中p_flags紧跟在p_type后面
+				progHeader.p_offset = (int) b.getLong(base + 8);
+				progHeader.p_vaddr = b.getLong(base + 16);
+				progHeader.p_paddr = b.getLong(base + 24);
+				progHeader.p_filesz = b.getLong(base + 32);
+				progHeader.p_memsz = b.getLong(base + 40);
+				progHeader.p_align = b.getLong(base + 48);
+				headers[i] = progHeader;
+			} else {
+				Elf32_Phdr progHeader = new Elf32_Phdr();
+				progHeader.p_type = b.getInt(base);
+				progHeader.p_offset = b.getInt(base + 4);
+				progHeader.p_vaddr = b.getInt(base + 8);
+				progHeader.p_paddr = b.getInt(base + 12);
+				progHeader.p_filesz = b.getInt(base + 16);
+				progHeader.p_memsz = b.getInt(base + 20);
+				progHeader.p_flags = b.getInt(base + 24);
+				progHeader.p_align = b.getInt(base + 28);
+				headers[i] = progHeader;
+			}
+		}
+		return headers;
+	}
+
+	/** 节区头部表是否存在并且位于文件范围内 */
+	private boolean hasSectionHeaders() {
+		final Ehdr h = mHeader;
+		long shoff = h.getSectionOffset();
+		return h.e_shnum > 0 && h.e_shentsize == (is64bit() ? 64 : 40) && shoff > 0
+				&& shoff + (long) h.e_shnum * h.e_shentsize <= mReader.size && h.e_shstrndx > 0
+				&& h.e_shstrndx < h.e_shnum;
+	}
+
+	/** 查找第一个指定类型的程序头部 */
+	final Elf_Phdr findProgHeader(int type) {
+		return findProgHeader(mProgHeaders, type);
+	}
+
+	static Elf_Phdr findProgHeader(Elf_Phdr[] headers, int type) {
+		for (Elf_Phdr phdr : headers) {
+			if (phdr.p_type == type) {
+				return phdr;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 检查所有PT_LOAD段能否在指定大小的内存页上直接映射:
+	 * p_align是页大小的整数倍，并且p_offset与p_vaddr对页大小同余
+	 */
+	public final boolean isLoadAligned(int pageSize) {
+		for (Elf_Phdr phdr : mProgHeaders) {
+			if (phdr.p_type != PT_LOAD) {
+				continue;
+			}
+			if (phdr.getAlign() < pageSize || phdr.getAlign() % pageSize != 0
+					|| ((phdr.p_offset & 0xffffffffL) - phdr.getVaddr()) % pageSize != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 虚拟地址转换为文件偏移
+	 *
+	 * @return 地址不在任何PT_LOAD段的文件数据中时返回-1
+	 */
+	final long vaddrToOffset(long vaddr) {
+		return vaddrToOffset(mProgHeaders, vaddr);
+	}
+
+	static long vaddrToOffset(Elf_Phdr[] headers, long vaddr) {
+		for (Elf_Phdr phdr : headers) {
+			if (phdr.p_type == PT_LOAD && vaddr >= phdr.getVaddr() && vaddr < phdr.getVaddr() + phdr.getFileSize()) {
+				return (phdr.p_offset & 0xffffffffL) + vaddr - phdr.getVaddr();
+			}
+		}
+		return -1;
+	}
+
+	/** PT_DYNAMIC中记录的动态符号表、字符串表和hash表的文件偏移，不存在时为0 */
+	static final class DynamicTables {
+		long strtab, symtab, hash, gnuHash;
+		long strsz, syment;
+		long symbols; // 动态符号个数
+		int hashSize; // .hash的大小，没有.hash时为0
+	}
+
+	/**
+	 * 根据PT_DYNAMIC中的DT_STRTAB、DT_SYMTAB、DT_HASH/DT_GNU_HASH和DT_STRSZ构造.dynstr、.dynsym、.hash和.gnu.hash的节区头部
+	 */
+	private Elf_Shdr[] readDynamicSections() throws IOException {
+		final LEDataInputStream r = mReader;
+		final boolean is64bit = is64bit();
+		DynamicTables d = readDynamic(r, mProgHeaders, is64bit);
+
+		// 节区名称: "\0.dynstr\0.dynsym\0.hash\0.gnu.hash\0"
+		mStringTable = ByteBuffer.wrap(("\0" + SHN_DYNSTR + "\0" + SHN_DYNSYM + "\0" + SHN_HASH + "\0" + SHN_GNU_HASH + "\0")
+				.getBytes());
+		int hashName = 1 + SHN_DYNSTR.length() + 1 + SHN_DYNSYM.length() + 1;
+		List<Elf_Shdr> sections = new ArrayList<Elf_Shdr>();
+		sections.add(newSection(0, 0, 0, 0, 0, 0));
+		sections.add(newSection(1, SHT_STRTAB, d.strtab, d.strsz, 0, 1));
+		sections.add(newSection(1 + SHN_DYNSTR.length() + 1, SHT_DYNSYM, d.symtab, d.symbols * d.syment, 1, 2));
+		if (d.hashSize > 0) {
+			sections.add(newSection(hashName, SHT_HASH, d.hash, d.hashSize, 2, sections.size()));
+		}
+		if (d.gnuHash > 0) {
+			// 头部、bloom过滤器、桶和symoffset之后每个符号一项的链
+			int nbucket = r.readIntAt(d.gnuHash);
+			int symoffset = r.readIntAt(d.gnuHash + 4);
+			int bloomSize = r.readIntAt(d.gnuHash + 8);
+			long gnuHashSize = 16 + (long) bloomSize * (is64bit ? 8 : 4) + nbucket * 4L
+					+ Math.max(0, d.symbols - symoffset) * 4;
+			sections.add(newSection(hashName + SHN_HASH.length() + 1, SHT_GNU_HASH, d.gnuHash, gnuHashSize, 2,
+					sections.size()));
+		}
+		return sections.toArray(new Elf_Shdr[sections.size()]);
+	}
+
+	/**
+	 * 读取PT_DYNAMIC，定位动态符号表、字符串表和hash表，{@link ElfVerifier}也用它读取节区头部表被去除的输出文件
+	 */
+	static DynamicTables readDynamic(LEDataInputStream r, Elf_Phdr[] headers, boolean is64bit) throws IOException {
+		Elf_Phdr dynamic = findProgHeader(headers, PT_DYNAMIC);
+		if (dynamic == null) {
+			throw new UnknownFormatConversionException("No PT_DYNAMIC");
+		}
+		DynamicTables d = new DynamicTables();
+		d.syment = is64bit ? 24 : 16;
+		int entrySize = is64bit ? 16 : 8;
+		r.seek(dynamic.p_offset & 0xffffffffL);
+		for (long i = 0; i < dynamic.getFileSize() / entrySize; i++) {
+			long tag = is64bit ? r.readLong() : r.readInt();
+			long val = is64bit ? r.readLong() : r.readInt() & 0xffffffffL;
+			if (tag == DT_NULL) {
+				break;
+			} else if (tag == DT_STRTAB) {
+				d.strtab = vaddrToOffset(headers, val);
+			} else if (tag == DT_SYMTAB) {
+				d.symtab = vaddrToOffset(headers, val);
+			} else if (tag == DT_HASH) {
+				d.hash = vaddrToOffset(headers, val);
+			} else if (tag == DT_GNU_HASH) {
+				d.gnuHash = vaddrToOffset(headers, val);
+			} else if (tag == DT_STRSZ) {
+				d.strsz = val;
+			} else if (tag == DT_SYMENT) {
+				d.syment = val;
+			}
+		}
+		if (d.strtab <= 0 || d.symtab <= 0 || d.strsz <= 0) {
+			throw new UnknownFormatConversionException("No DT_STRTAB/DT_SYMTAB in PT_DYNAMIC");
+		}
+		d.hash = Math.max(0, d.hash);
+		d.gnuHash = Math.max(0, d.gnuHash);
+
+		// 符号个数: .hash中的nchain，或者遍历.gnu.hash
+		if (d.hash > 0) {
+			r.seek(d.hash);
+			int nbucket = r.readInt();
+			int nchain = r.readInt();
+			d.hashSize = nbucket * 4 + nchain * 4 + 8;
+			d.symbols = nchain;
+		} else if (d.gnuHash > 0) {
+			d.symbols = countGnuHashSymbols(r, d.gnuHash, is64bit);
+		} else if (d.strtab > d.symtab) {
+			d.symbols = (d.strtab - d.symtab) / d.syment; // 字符串表通常紧跟在符号表后面
+		} else {
+			throw new UnknownFormatConversionException("No DT_HASH/DT_GNU_HASH in PT_DYNAMIC");
+		}
+		return d;
+	}
+
+	/** 遍历.gnu.hash得到动态符号个数 */
+	static long countGnuHashSymbols(LEDataInputStream r, long gnuHash, boolean is64bit) throws IOException {
+		r.seek(gnuHash);
+		int nbucket = r.readInt();
+		int symoffset = r.readInt();
+		int bloomSize = r.readInt();
+		r.readInt(); // bloom_shift
+		long buckets = gnuHash + 16 + (long) bloomSize * (is64bit ? 8 : 4);
+		r.seek(buckets);
+		int max = 0;
+		for (int i = 0; i < nbucket; i++) {
+			max = Math.max(max, r.readInt());
+		}
+		if (max < symoffset) {
+			return symoffset;
+		}
+		r.seek(buckets + nbucket * 4L + (max - symoffset) * 4L);
+		while ((r.readInt() & 1) == 0) {
+			max++;
+		}
+		return max + 1;
+	}
+
+	/** 构造一个节区头部 */
+	private Elf_Shdr newSection(int name, int type, long offset, long size, int link, int index) {
+		Elf_Shdr sec;
+		if (is64bit()) {
+			Elf64_Shdr sec64 = new Elf64_Shdr();
+			sec64.sh_offset = offset;
+			sec64.sh_size = size;
+			sec = sec64;
+		} else {
+			Elf32_Shdr sec32 = new Elf32_Shdr();
+			sec32.sh_offset = (int) offset;
+			sec32.sh_size = (int) size;
+			sec = sec32;
+		}
+		sec.sh_name = name;
+		sec.sh_type = type;
+		sec.sh_link = link;
+		sec.index = index;
+		return sec;
+	}
+
+	/** 读取.rodata段的只读视图，不复制到堆上 */
+	private void readRoDataTable(Elf_Shdr roData) throws IOException {
+		mRoDataStringTable = mReader.slice(roData.getOffset(), roData.getSize());
+	}
+
+	private ItemHelper newRoDataItem(int offset, int length) {
+		ItemHelper item = new ItemHelper();
+		item.oldval = stringAt(mRoDataStringTable, offset, length);
+		item.offset = offset;
+		item.length = length;
+		return item;
+	}
+
+	public static long ELFHash(String strUri) {
 		long hash = 0;
 		long x = 0;
 		for (int i = 0; i < strUri.length(); i++) {
@@ -830,6 +1589,16 @@ public class Elf implements Closeable {
 	 * 写入符号表hash
 	 */
 	private final void writeDynHash(List<ItemHelper> items, LEDataOutputStream lmOut) throws IOException {
+		long time = begin(PhaseListener.Phase.WRITE_DYNHASH), alloc = allocated();
+		try {
+			writeDynHash(items, num_buckets, num_chains, lmOut);
+		} finally {
+			report(PhaseListener.Phase.WRITE_DYNHASH, time, alloc, num_buckets * 4 + num_chains * 4 + 8);
+		}
+	}
+
+	static void writeDynHash(List<ItemHelper> items, int num_buckets, int num_chains, LEDataOutputStream lmOut)
+			throws IOException {
 		lmOut.writeInt(num_buckets);
 		lmOut.writeInt(num_chains);
 		int buckets_t[] = new int[num_buckets];
@@ -840,7 +1609,9 @@ public class Elf implements Closeable {
 			if (item.sym_offset == -1) {
 				continue;
 			}
-			int offset = (int) (ELFHash(item.newVal == null ? item.oldval : item.newVal) % num_buckets);
+			// 与写入.dynstr时一样补齐到原长度
+			String name = item.newVal == null ? item.oldval : fillString(item.newVal, item.oldval.length());
+			int offset = (int) (ELFHash(name) % num_buckets);
 			
 			if (buckets_t[offset] == 0) {
 				buckets_t[offset] = item.sym_offset;
@@ -859,12 +1630,113 @@ public class Elf implements Closeable {
 	}
 
 	/**
-	 * 写符号名
-	 * 
-	 * @return 写入的实际大小
+	 * 写入按修改后的.dynstr重建的.gnu.hash
+	 */
+	private void writeGnuHash(Elf_Shdr gnuHash, Elf_Shdr dynsym, byte[] dynstr, LEDataOutputStream lmOut)
+			throws IOException {
+		long time = begin(PhaseListener.Phase.WRITE_DYNHASH), alloc = allocated();
+		try {
+			writeGnuHash(mReader.slice(gnuHash.getOffset(), gnuHash.getSize()),
+					mReader.slice(dynsym.getOffset(), dynsym.getSize()), is64bit(), dynstr, lmOut);
+		} finally {
+			report(PhaseListener.Phase.WRITE_DYNHASH, time, alloc, gnuHash.getSize());
+		}
+	}
+
+	/**
+	 * 重建.gnu.hash，.dynsym中符号的顺序不变，bloom过滤器、桶和链都重新计算
+	 * 同一个桶的符号必须在.dynsym中连续，重命名后不再满足时改为只用一个桶，查找结果不变，空出的部分补0
+	 *
+	 * @param table
+	 *            原来的.gnu.hash
+	 * @param dynsym
+	 *            .dynsym，只用到每个符号的st_name
+	 * @param dynstr
+	 *            修改后的.dynstr
+	 */
+	static void writeGnuHash(ByteBuffer table, ByteBuffer dynsym, boolean is64bit, byte[] dynstr,
+			LEDataOutputStream lmOut) throws IOException {
+		int nbucket = table.getInt(0);
+		int symoffset = table.getInt(4);
+		int bloomSize = table.getInt(8);
+		int shift = table.getInt(12);
+		int symSize = is64bit ? 24 : 16;
+		int bits = is64bit ? 64 : 32;
+		int[] hashes = new int[Math.max(0, dynsym.capacity() / symSize - symoffset)];
+		int size = 16 + bloomSize * (bits / 8) + nbucket * 4 + hashes.length * 4;
+		if (nbucket <= 0 || bloomSize <= 0 || size > table.capacity()) {
+			throw new IOException("Unsupported .gnu.hash (nbucket " + nbucket + ", bloom " + bloomSize + ")");
+		}
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = gnuHash(dynstr, dynsym.getInt((symoffset + i) * symSize));
+		}
+		if (!isGrouped(hashes, nbucket)) {
+			nbucket = 1;
+		}
+		long[] bloom = new long[bloomSize];
+		int[] buckets = new int[nbucket];
+		int[] chains = new int[hashes.length];
+		for (int i = 0; i < hashes.length; i++) {
+			long hash = hashes[i] & 0xffffffffL;
+			bloom[(int) ((hash / bits) % bloomSize)] |= (1L << (hash % bits)) | (1L << ((hash >>> shift) % bits));
+			int bucket = (int) (hash % nbucket);
+			if (buckets[bucket] == 0) {
+				buckets[bucket] = symoffset + i;
+			}
+			// 链中每个桶的最后一个符号最低位为1
+			boolean last = i + 1 == hashes.length || (hashes[i + 1] & 0xffffffffL) % nbucket != bucket;
+			chains[i] = last ? hashes[i] | 1 : hashes[i] & ~1;
+		}
+		lmOut.writeInt(nbucket);
+		lmOut.writeInt(symoffset);
+		lmOut.writeInt(bloomSize);
+		lmOut.writeInt(shift);
+		for (long word : bloom) {
+			if (is64bit) {
+				lmOut.writeLong(word);
+			} else {
+				lmOut.writeInt((int) word);
+			}
+		}
+		lmOut.writeIntArray(buckets);
+		lmOut.writeIntArray(chains);
+		lmOut.writeBytes(table.capacity() - (16 + bloomSize * (bits / 8) + nbucket * 4 + chains.length * 4));
+	}
+
+	/** 同一个桶的符号是否连续 */
+	private static boolean isGrouped(int[] hashes, int nbucket) {
+		boolean[] seen = new boolean[nbucket];
+		int previous = -1;
+		for (int h : hashes) {
+			int bucket = (int) ((h & 0xffffffffL) % nbucket);
+			if (bucket != previous) {
+				if (seen[bucket]) {
+					return false;
+				}
+				seen[bucket] = true;
+				previous = bucket;
+			}
+		}
+		return true;
+	}
+
+	/** .gnu.hash使用的hash函数，计算字符串表中start处的字符串 */
+	static int gnuHash(byte[] table, int start) {
+		int h = 5381;
+		for (int i = start; i < table.length && table[i] != 0; i++) {
+			h = h * 33 + (table[i] & 0xff);
+		}
+		return h;
+	}
+
+	/**
+	 * 生成修改后的.dynstr，.hash和.gnu.hash都按它计算
 	 ***/
-	private final long writeDynString(List<ItemHelper> items, LEDataOutputStream lmOut) throws IOException {
+	private byte[] renderDynString() throws IOException {
+		return new DynString(this, dy_items, mDynStringTable).get();
+	}
 
+	static long writeDynString(List<ItemHelper> items, ByteBuffer table, LEDataOutputStream lmOut) throws IOException {
 		long offset = 0;
 		long len = 0;
 		for (ItemHelper item : items) {
@@ -886,10 +1758,12 @@ public class Elf implements Closeable {
 			len += 1;
 		}
 		// 写入余下部分
-		if (mDynStringTable.length - (int) offset <= 0)
-			return len;
-		lmOut.writeFully(mDynStringTable, (int) offset, mDynStringTable.length - (int) offset);
-		len += mDynStringTable.length - (int) offset;
+		if (table.capacity() - (int) offset > 0) {
+			ByteBuffer rest = table.duplicate();
+			rest.position((int) offset);
+			len += rest.remaining();
+			lmOut.write(rest);
+		}
 		return len;
 	}
 
@@ -898,68 +1772,484 @@ public class Elf implements Closeable {
 	 * @param os 文件输出流
 	 ****/
 	public final void writeELF(OutputStream os) throws IOException {
+		writeELF(os, null);
+	}
+
+	/**
+	 * 写ELF，由写入线程按顺序写出已经就绪的数据，同时在当前线程重新生成后面修改过的段
+	 * @param os 文件输出流
+	 * @param callBack 进度回调，可以为null
+	 ****/
+	public final void writeELF(OutputStream os, ProgressCallBack callBack) throws IOException {
+		long time = begin(PhaseListener.Phase.WRITE), alloc = allocated();
 		final LEDataOutputStream lmOut = new LEDataOutputStream(os);
-		Elf_Shdr dynsym = getSectionByName(SHN_DYNSYM);
-		Elf_Shdr dynLinkSec = mSectionHeaders[dynsym.sh_link];
-		long offset = dynLinkSec.getOffset();
+		boolean complete = false;
+		try {
+			writeRegions(lmOut, callBack);
+			complete = true;
+		} finally {
+			report(PhaseListener.Phase.WRITE, time, alloc, lmOut.size());
+			if (!complete) {
+				lmOut.finish(); // 出错时写入线程已经结束，只归还缓冲区，输出流由调用者关闭
+			}
+		}
+		lmOut.close();
+		close();
+	}
+
+	/** 按文件偏移顺序写出未修改的区间和重新生成的段 */
+	private void writeRegions(LEDataOutputStream lmOut, ProgressCallBack callBack) throws IOException {
+		lmOut.setIsLittleEndian(isLittleEndian());
+		writeRegions(this, mReader, dirtyRegions(), isLittleEndian(), lmOut, callBack);
+	}
+
+	/**
+	 * 按文件偏移顺序写出source中未修改的区间和regions中重新生成的段，{@link ElfSnapshot}也用它输出
+	 * @param stats 统计耗时的Elf，为null时不统计
+	 * @param source 原文件
+	 * @param regions 重新生成的段，与原来等长，互不重叠
+	 */
+	static void writeRegions(final Elf stats, LEDataInputStream source, List<Region> regions, boolean isLittleEndian,
+			final LEDataOutputStream lmOut, final ProgressCallBack callBack) throws IOException {
+		final long total = source.size;
+		// 未修改的区间使用原文件的只读视图，重新生成的段分块写入有限的几个缓冲块，按文件偏移顺序放入有界队列
+		final WriteQueue queue = new WriteQueue(WRITE_CHUNK, WRITE_QUEUE, WRITE_BUFFERS);
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		Future<Long> written = writer.submit(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return writeExtra(stats, queue, lmOut, callBack, total);
+			}
+		});
+		queue.setConsumer(written);
+		boolean complete = false;
+		try {
+			Collections.sort(regions, new Comparator<Region>() {
+				@Override
+				public int compare(Region a, Region b) {
+					return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+				}
+			});
+			long offset = 0;
+			for (Region region : regions) {
+				addExtra(source, offset, region.offset, queue); // 前面的数据
+				region.render(queue, isLittleEndian);
+				offset = region.offset + region.length;
+			}
+			addExtra(source, offset, total, queue); // 余下部分
+			queue.end();
+			complete = true;
+		} finally {
+			if (!complete) {
+				queue.abort(); // 出错时丢弃还没有写出的数据
+				// 等写入线程结束，之后调用者才能关闭输出流
+				try {
+					written.get();
+				} catch (ExecutionException e) {
+					// 已经在抛出生成数据时的异常，写入线程的异常不再重复
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			writer.shutdown();
+		}
+		join(written);
+	}
+
+	/**
+	 * 需要重新生成的一段数据，替换原文件中[offset, offset + length)的内容
+	 */
+	static abstract class Region {
+		final long offset;
+		final long length;
+
+		Region(long offset, long length) {
+			this.offset = offset;
+			this.length = length;
+		}
+
+		abstract void write(LEDataOutputStream lmOut) throws IOException;
+
+		/** 生成新数据，写满一块就放入写入队列 */
+		void render(WriteQueue queue, boolean isLittleEndian) throws IOException {
+			LEDataOutputStream out = new LEDataOutputStream(queue.newChannel());
+			out.setIsLittleEndian(isLittleEndian);
+			write(out);
+			out.close();
+		}
+	}
+
+	/**
+	 * 修改后的.dynstr，在生成它所在的区间或.gnu.hash时才生成，此时前面的数据已经在写入线程上写出
+	 */
+	static final class DynString {
+		private final Elf mStats; // 统计耗时的Elf，快照输出时为null
+		private final List<ItemHelper> mItems;
+		private final ByteBuffer mTable;
+		private byte[] mData;
+
+		DynString(Elf stats, List<ItemHelper> items, ByteBuffer table) {
+			mStats = stats;
+			mItems = items;
+			mTable = table;
+		}
+
+		/** 生成后保留，.gnu.hash和.dynstr共用 */
+		byte[] get() throws IOException {
+			if (mData == null) {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(mTable.capacity());
+				LEDataOutputStream out = new LEDataOutputStream(bos);
+				write(out);
+				out.close();
+				mData = bos.toByteArray();
+			}
+			return mData;
+		}
+
+		/** 写出.dynstr，还没有生成时直接写入输出，不保留副本 */
+		void write(LEDataOutputStream lmOut) throws IOException {
+			if (mData != null) {
+				lmOut.writeFully(mData);
+				return;
+			}
+			long time = begin(mStats, PhaseListener.Phase.WRITE_DYNSTR), alloc = allocated();
+			long length = 0;
+			try {
+				length = writeDynString(mItems, mTable, lmOut);
+			} finally {
+				report(mStats, PhaseListener.Phase.WRITE_DYNSTR, time, alloc, length);
+			}
+		}
+	}
+
+	/**
+	 * 有修改的段，由{@link #writeRegions}按文件偏移排序，需要注意的是不是所有的elf文件段都是一样顺序的
+	 */
+	private List<Region> dirtyRegions() throws IOException {
+		List<Region> regions = new ArrayList<Region>();
+		final Elf_Shdr dynsym = getSectionByName(SHN_DYNSYM);
+		if (dynsym != null && isDynStringDirty()) {
+			final DynString dynstr = new DynString(this, dy_items, mDynStringTable);
+			Elf_Shdr dyhash = getSectionByName(SHN_HASH);
+			if (dyhash != null) {
+				regions.add(new Region(dyhash.getOffset(), num_buckets * 4 + num_chains * 4 + 8) {
+					@Override
+					void write(LEDataOutputStream lmOut) throws IOException {
+						writeDynHash(dy_items, lmOut); // 符号名hash
+					}
+				});
+			}
+			final Elf_Shdr gnuHash = mSections.getFirstByType(SHT_GNU_HASH);
+			if (gnuHash != null) {
+				regions.add(new Region(gnuHash.getOffset(), gnuHash.getSize()) {
+					@Override
+					void write(LEDataOutputStream lmOut) throws IOException {
+						writeGnuHash(gnuHash, dynsym, dynstr.get(), lmOut); // 符号名gnu hash
+					}
+				});
+			}
+			regions.add(new Region(mSectionHeaders[dynsym.sh_link].getOffset(), mDynStringTable.capacity()) {
+				@Override
+				void write(LEDataOutputStream lmOut) throws IOException {
+					dynstr.write(lmOut); // 符号名
+				}
+			});
+		}
+		Elf_Shdr roData = getSectionByName(SHN_RODATA);
+		if (roData != null && mRoDataStringTable != null && isRoDataDirty()) {
+			regions.add(new Region(roData.getOffset(), roData.getSize()) {
+				@Override
+				void write(LEDataOutputStream lmOut) throws IOException {
+					writeRodata(lmOut);
+				}
+			});
+		}
+		if (mSymbolTable != null && mSymbolTable.isDirty()) {
+			Elf_Shdr strtab = mSectionHeaders[mSymbolTable.getStringSection()];
+			regions.add(new Region(strtab.getOffset(), strtab.getSize()) {
+				@Override
+				void write(LEDataOutputStream lmOut) throws IOException {
+					mSymbolTable.writeStrings(lmOut); // 静态符号名
+				}
+			});
+		}
+		return regions;
+	}
+
+	/**
+	 * 保存到文件，没有任何修改时不写出文件
+	 * @param file 输出文件
+	 * @return 是否写出了文件，返回false时文件没有被创建或改动
+	 ****/
+	public final boolean saveTo(File file) throws IOException {
+		return saveTo(file, null);
+	}
+
+	/**
+	 * 保存到文件，没有任何修改时不写出文件
+	 * @param file 输出文件
+	 * @param callBack 进度回调，可以为null
+	 * @return 是否写出了文件，返回false时文件没有被创建或改动
+	 ****/
+	public final boolean saveTo(File file, ProgressCallBack callBack) throws IOException {
+		if (!isDirty()) {
+			return false;
+		}
+		OutputStream os = new FileOutputStream(file);
+		try {
+			writeELF(os, callBack);
+		} finally {
+			os.close();
+		}
+		return true;
+	}
+
+	/** 是否有任何修改，包括.dynstr、.rodata和静态符号名 */
+	public boolean isDirty() {
+		return isDynStringDirty() || isRoDataDirty() || (mSymbolTable != null && mSymbolTable.isDirty());
+	}
+
+	/** .dynstr中是否有修改过的字符串，有修改时.hash也随之重建 */
+	public boolean isDynStringDirty() {
+		return isDirty(dy_items, false);
+	}
+
+	/** .rodata中是否有修改过的字符串 */
+	public boolean isRoDataDirty() {
+		return isDirty(ro_items, true);
+	}
+
+	/**
+	 * @param ignoreEmpty
+	 *            newVal为空字符串时视为未修改，与{@link #rodataEdits}一致
+	 */
+	static boolean isDirty(List<ItemHelper> items, boolean ignoreEmpty) {
+		if (items == null) {
+			return false;
+		}
+		for (ItemHelper item : items) {
+			if (item.newVal != null && !item.newVal.equals(item.oldval) && !(ignoreEmpty && item.newVal.equals(""))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 写ELF，同时重新排布PT_LOAD段，使每个段的文件偏移与虚拟地址对pageSize同余
+	 * @param os 文件输出流
+	 * @param pageSize 内存页大小，如16K
+	 ****/
+	public final void writeELF(OutputStream os, int pageSize) throws IOException {
+		writeELF(os, pageSize, null);
+	}
+
+	/**
+	 * 写ELF，同时重新排布PT_LOAD段，进度按插入填充后的输出长度回调
+	 * @param os 文件输出流
+	 * @param pageSize 内存页大小，如16K
+	 * @param callBack 进度回调，可以为null
+	 ****/
+	public final void writeELF(OutputStream os, int pageSize, ProgressCallBack callBack) throws IOException {
+		SegmentRelayout relayout = new SegmentRelayout(this, pageSize);
+		writeELF(relayout.wrap(os), callBack == null ? null : relayout.wrap(callBack));
+	}
+
+	/**
+	 * 导出二进制补丁，只包含.hash、.gnu.hash、.dynstr、.rodata和.strtab中改变的数据，用{@link ElfPatch#apply}应用到原文件上
+	 * @param os 补丁输出流
+	 ****/
+	public final void writePatch(OutputStream os) throws IOException {
+		ElfPatch patch = new ElfPatch(mReader.size, checksum());
+		final boolean dynDirty = isDynStringDirty();
 		Elf_Shdr dyhash = getSectionByName(SHN_HASH);
-		long offset2 = dyhash.getOffset();
-		// 需要注意的是哪个段在前，不是所有的elf文件段都是一样顺序的
-		if (offset > offset2) {
-			writeExtra(0, offset2, lmOut); // 写入前面部分
-			writeDynHash(dy_items, lmOut); // 写入符号名hash
-
-			offset2 += num_buckets * 4 + num_chains * 4 + 8;
-			writeExtra(offset2, offset, lmOut); // 写入符号名和符号名hash之间的数据
-			offset2 = offset;
-			writeDynString(dy_items, lmOut); // 写入符号名
-			offset2 += mDynStringTable.length;
-			offset = offset2;
-		} else {
-			writeExtra(0, offset, lmOut); // 写入前面部分
-			writeDynString(dy_items, lmOut); // 写入符号名
-			offset += mDynStringTable.length;
-			writeExtra(offset, offset2, lmOut); // 写入符号名和符号名hash之间的数据
-			offset = offset2;
-			writeDynHash(dy_items, lmOut); // 写入符号名hash
-			offset += num_buckets * 4 + num_chains * 4 + 8;
-		}
-		// 写RoData
+		if (dyhash != null && dynDirty) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(dyhash.getSize());
+			LEDataOutputStream out = new LEDataOutputStream(bos);
+			out.setIsLittleEndian(isLittleEndian());
+			writeDynHash(dy_items, out);
+			out.close();
+			patch.diff(dyhash.getOffset(), readBytes(dyhash.getOffset(), dyhash.getSize()), bos.toByteArray());
+		}
+		Elf_Shdr dynsym = getSectionByName(SHN_DYNSYM);
+		if (dynsym != null && dynDirty) {
+			byte[] dynstr = renderDynString();
+			Elf_Shdr gnuHash = mSections.getFirstByType(SHT_GNU_HASH);
+			if (gnuHash != null) {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(gnuHash.getSize());
+				LEDataOutputStream out = new LEDataOutputStream(bos);
+				out.setIsLittleEndian(isLittleEndian());
+				writeGnuHash(gnuHash, dynsym, dynstr, out);
+				out.close();
+				patch.diff(gnuHash.getOffset(), readBytes(gnuHash.getOffset(), gnuHash.getSize()), bos.toByteArray());
+			}
+			Elf_Shdr dynLinkSec = mSectionHeaders[dynsym.sh_link];
+			patch.diff(dynLinkSec.getOffset(), bytesAt(mDynStringTable, 0, mDynStringTable.capacity()), dynstr);
+		}
 		Elf_Shdr roData = getSectionByName(SHN_RODATA);
-		if (roData != null) {
-			writeExtra(offset, roData.getOffset(), lmOut);
-			offset = roData.getOffset();
-			writeRodataBytes();
-			lmOut.writeFully(mRoDataStringTable);
-			offset += mRoDataStringTable.length;
+		if (roData != null && mRoDataStringTable != null) {
+			// 只比较修改过的字符串，不复制整个段
+			for (ItemHelper item : rodataEdits(ro_items, mRoDataStringTable.capacity())) {
+				byte[] data = rodataBytes(item, mRoDataStringTable.capacity());
+				patch.diff(roData.getOffset() + item.offset, bytesAt(mRoDataStringTable, item.offset, data.length), data);
+			}
+		}
+		if (mSymbolTable != null) {
+			long base = mSectionHeaders[mSymbolTable.getStringSection()].getOffset();
+			for (Map.Entry<Integer, byte[]> edit : mSymbolTable.getEdits().entrySet()) {
+				patch.diff(base + edit.getKey(), mSymbolTable.originalBytes(edit.getKey()), edit.getValue());
+			}
 		}
+		patch.write(os);
+	}
 
-		writeExtra(offset, mReader.size, lmOut); // 写入余下部分
-		lmOut.close();
-		close();
+	/** 读取文件中的一段数据 */
+	private byte[] readBytes(long offset, int length) throws IOException {
+		byte[] data = new byte[length];
+		mReader.readBytesAt(offset, data, 0, length);
+		return data;
 	}
 
-	private void writeExtra(long offset1, long offset2, LEDataOutputStream lmOut) throws IOException {
-		long len = offset2 - offset1;
-		if (len <= 0)
-			return;
-		int buf_len = 2048;
-		long remaining = len;
-		mReader.seek(offset1);
-		byte buffer[] = new byte[buf_len];
-		while (remaining != 0) {
-			if (buf_len <= remaining) {
-				mReader.readFully(buffer);
-				lmOut.writeFully(buffer);
-				remaining -= buf_len;
-			} else {
-				mReader.readFully(buffer, 0, (int) remaining);
-				lmOut.writeFully(buffer, 0, (int) remaining);
-				remaining = 0;
+	/** 计算整个文件的CRC32 */
+	private int checksum() throws IOException {
+		CRC32 crc = new CRC32();
+		byte buffer[] = new byte[8192];
+		long remaining = mReader.size;
+		mReader.seek(0);
+		while (remaining > 0) {
+			int count = (int) Math.min(buffer.length, remaining);
+			mReader.readFully(buffer, 0, count);
+			crc.update(buffer, 0, count);
+			remaining -= count;
+		}
+		return (int) crc.getValue();
+	}
+
+	/** 把原文件中[offset1, offset2)的数据以只读视图放入写入队列，不复制数据 */
+	private static void addExtra(LEDataInputStream source, long offset1, long offset2, WriteQueue queue)
+			throws IOException {
+		while (offset2 > offset1) {
+			int len = (int) Math.min(offset2 - offset1, Integer.MAX_VALUE);
+			queue.put(source.slice(offset1, len));
+			offset1 += len;
+		}
+	}
+
+	/**
+	 * 写入线程，按顺序写出队列中的数据直到结束标记，输出到文件时每次把已经就绪的几块合并为一次聚集写入，写出后回收缓冲块
+	 * @param total 输出的总长度
+	 * @return 写入的字节数
+	 */
+	private static long writeExtra(Elf stats, WriteQueue queue, LEDataOutputStream lmOut, ProgressCallBack callBack,
+			long total) throws IOException, InterruptedException {
+		long time = begin(stats, PhaseListener.Phase.WRITE_EXTRA), alloc = allocated();
+		List<WriteQueue.Chunk> batch = new ArrayList<WriteQueue.Chunk>(WRITE_BATCH);
+		long written = 0;
+		try {
+			boolean end = false;
+			while (!end) {
+				batch.add(queue.take());
+				queue.drainTo(batch, WRITE_BATCH - 1);
+				// 结束标记总是最后放入
+				if (batch.get(batch.size() - 1) == WriteQueue.END) {
+					batch.remove(batch.size() - 1);
+					end = true;
+				}
+				ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+				for (int i = 0; i < buffers.length; i++) {
+					buffers[i] = batch.get(i).data;
+				}
+				written += lmOut.write(buffers);
+				for (WriteQueue.Chunk chunk : batch) {
+					queue.recycle(chunk);
+				}
+				batch.clear();
+				if (callBack != null) {
+					callBack.progress(written, total); // 重新生成的段与原来等长，输出长度就是原文件的大小
+				}
 			}
+		} finally {
+			report(stats, PhaseListener.Phase.WRITE_EXTRA, time, alloc, written);
+		}
+		return written;
+	}
+
+	/** 当前已使用的堆内存，用于估计各阶段分配的内存 */
+	private static long allocated() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/** 开始一个阶段 */
+	private long begin(PhaseListener.Phase phase) {
+		if (mListener != PhaseListener.NONE) {
+			mListener.onPhaseStart(this, phase);
+		}
+		return System.nanoTime();
+	}
+
+	/** 报告一个阶段的耗时 */
+	private void report(PhaseListener.Phase phase, long time, long alloc, long bytes) {
+		if (mListener != PhaseListener.NONE) {
+			mListener.onPhase(this, phase, System.nanoTime() - time, bytes, Math.max(0, allocated() - alloc));
 		}
 	}
 
+	/** 开始一个阶段，elf为null时不统计 */
+	private static long begin(Elf elf, PhaseListener.Phase phase) {
+		return elf == null ? System.nanoTime() : elf.begin(phase);
+	}
+
+	/** 报告一个阶段的耗时，elf为null时不统计 */
+	private static void report(Elf elf, PhaseListener.Phase phase, long time, long alloc, long bytes) {
+		if (elf != null) {
+			elf.report(phase, time, alloc, bytes);
+		}
+	}
+
+	/** 设置之后新建的Elf默认使用的统计监听器，批量处理时可以设置为{@link PhaseHistogram} */
+	public static void setDefaultListener(PhaseListener listener) {
+		sDefaultListener = listener == null ? PhaseListener.NONE : listener;
+	}
+
+	/** 设置统计监听器，解析时的统计只会报告给默认监听器 */
+	public void setListener(PhaseListener listener) {
+		mListener = listener == null ? PhaseListener.NONE : listener;
+	}
+
+	/** 文件名，不是从文件打开时为null */
+	public String getName() {
+		return mFile == null ? null : mFile.getName();
+	}
+
+	/** 源文件，不是从文件打开时为null */
+	public File getFile() {
+		return mFile;
+	}
+
+	/** 打开文件时计算的{@link ElfCache#digest(File)}，不是从文件打开时为0 */
+	int getDigest() {
+		return mDigest;
+	}
+
+	/**
+	 * 建立当前解析结果的只读快照，快照可以在多个线程间共享，每个线程用各自的{@link ElfSnapshot.EditSet}输出不同的修改
+	 */
+	public ElfSnapshot snapshot() throws IOException {
+		ByteBuffer data;
+		if (isWindowed()) {
+			FileInputStream fis = new FileInputStream(mFile);
+			try {
+				data = fis.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mReader.size);
+			} finally {
+				fis.close();
+			}
+		} else {
+			data = mReader.slice(0, (int) mReader.size);
+		}
+		return new ElfSnapshot(this, data.order(isLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN));
+	}
+
 	// 排序字符串，由于字符串在arsc中是一一对应的，所以不能改变原来的一一对应，需要将列表进行排序
 	/*
 	 * @SuppressLint("DefaultLocale") public void sortStringBlock(String src,
@@ -1049,46 +2339,212 @@ public class Elf implements Closeable {
 	 */
 
 	/**
-	 * 整理数据(字符串)
+	 * 整理数据(字符串)，target中为空的项表示没有修改或者恢复原来的值
 	 **/
 	@SuppressLint("DefaultLocale")
-	public void sortStrData(List<String> source, List<String> target, List<ItemHelper> items) {
+	public void sortStrData(List<String> source, List<String> target, List<ItemHelper> items) throws IOException {
 		int index = 0;
 		for (String string : target) {
-			if (!string.equals("")) {
-				int i = items.indexOf(new ItemHelper(source.get(index)));
-				if (i == -1) { // 乱码
-					continue;
-				}
+			int i = items.indexOf(new ItemHelper(source.get(index++)));
+			if (i == -1) { // 乱码
+				continue;
+			}
+			ItemHelper item = items.get(i);
+			if (!string.equals("") || item.newVal != null) {
+				setValue(items, item, string);
+			}
+		}
+	}
 
-				ItemHelper item = items.get(i);
-				item.newVal = string;
+	/**
+	 * 修改字符串的值，设置了编辑日志时同时记录到日志中
+	 *
+	 * @param value
+	 *            新的值，为空时恢复原来的值
+	 */
+	public void setValue(List<ItemHelper> items, ItemHelper item, String value) throws IOException {
+		String oldVal = item.newVal == null ? item.oldval : item.newVal;
+		String newVal = value == null || value.equals("") ? item.oldval : value;
+		if (oldVal.equals(newVal)) {
+			return;
+		}
+		item.newVal = newVal.equals(item.oldval) ? null : newVal;
+		if (mJournal != null) {
+			mJournal.record(sectionOf(items), item, oldVal, newVal);
+		}
+	}
+
+	/**
+	 * 按段索引和偏移修改字符串，供编辑日志重放、撤销和重做使用
+	 *
+	 * @param expect
+	 *            字符串当前的值，不一致时不修改
+	 * @return 找不到字符串或者当前值不一致时返回false
+	 */
+	boolean applyBytes(int section, int offset, byte[] expect, byte[] bytes) throws IOException {
+		ItemHelper item = itemAt(section, offset);
+		if (item == null) {
+			SymbolTable symtab = getSymbolTable();
+			if (symtab == null || symtab.getStringSection() != section
+					|| !Arrays.equals(symtab.currentBytes(offset), expect)) {
+				return false;
 			}
-			index++;
+			symtab.setString(offset, bytes);
+			return true;
 		}
+		String current = item.newVal == null ? item.oldval : item.newVal;
+		if (!Arrays.equals(current.getBytes(), expect)) {
+			return false;
+		}
+		String value = new String(bytes);
+		item.newVal = value.equals(item.oldval) ? null : value;
+		return true;
 	}
 
-	public void writeRodataBytes() throws UnsupportedEncodingException {
-		for (ItemHelper item : ro_items) {
-			if (item.newVal != null && !item.newVal.equals("")) {
-				byte[] s_data = item.data;
-				// 找到偏移位置
-				int pos = findBytesPos(mRoDataStringTable, s_data);
-				if (pos == -1) {
+	/** 字符串列表所在段在节区头部表中的索引 */
+	public int sectionOf(List<ItemHelper> items) {
+		if (items == dy_items) {
+			Elf_Shdr dynsym = getSectionByName(SHN_DYNSYM);
+			return dynsym == null ? -1 : dynsym.sh_link;
+		} else if (items == ro_items) {
+			Elf_Shdr roData = getSectionByName(SHN_RODATA);
+			return roData == null ? -1 : roData.index;
+		}
+		return -1;
+	}
+
+	/** 按段索引和偏移查找字符串 */
+	private ItemHelper itemAt(int section, int offset) {
+		if (mItemIndex == null) {
+			mItemIndex = new HashMap<Long, ItemHelper>();
+			for (List<ItemHelper> items : Arrays.asList(dy_items, ro_items)) {
+				if (items == null) {
 					continue;
 				}
-				byte[] data = item.newVal.getBytes();
-				for (byte b : data) { // 替换
-					mRoDataStringTable[pos++] = b;
-				}
-				int len_s = s_data.length - data.length;
-				while (len_s-- > 0) {
-					mRoDataStringTable[pos++] = 20; //替换成空格，以保证文件大小不变
+				long key = (long) sectionOf(items) << 32;
+				for (ItemHelper item : items) {
+					mItemIndex.put(key | (item.offset & 0xffffffffL), item);
 				}
 			}
 		}
+		return mItemIndex.get((long) section << 32 | (offset & 0xffffffffL));
 	}
-	
+
+	/**
+	 * 静态符号表，没有.symtab段(被strip过)时返回null
+	 * 第一次调用时才建立，符号按需从段数据中解码
+	 */
+	public SymbolTable getSymbolTable() throws IOException {
+		if (mSymbolTable == null) {
+			Elf_Shdr symtab = mSections.getFirstByType(SHT_SYMTAB);
+			if (symtab == null || symtab.sh_link <= 0 || symtab.sh_link >= mSectionHeaders.length) {
+				return null;
+			}
+			Elf_Shdr strtab = mSectionHeaders[symtab.sh_link];
+			mSymbolTable = new SymbolTable(mReader.slice(symtab.getOffset(), symtab.getSize()),
+					mReader.slice(strtab.getOffset(), strtab.getSize()), is64bit(), strtab.index);
+		}
+		return mSymbolTable;
+	}
+
+	/**
+	 * 修改静态符号表中符号的名称，新名称不能比原来的长，设置了编辑日志时同时记录到日志中
+	 *
+	 * @param index
+	 *            符号在.symtab中的索引
+	 */
+	public void renameSymbol(int index, String name) throws IOException {
+		SymbolTable symtab = getSymbolTable();
+		if (symtab == null) {
+			throw new IOException("No .symtab section");
+		}
+		int offset = symtab.get(index).nameOffset();
+		byte[] oldBytes = symtab.currentBytes(offset);
+		byte[] newBytes = symtab.setString(offset, name.getBytes());
+		if (mJournal != null) {
+			mJournal.record(symtab.getStringSection(), offset, oldBytes, newBytes);
+		}
+	}
+
+	void setJournal(EditJournal journal) {
+		mJournal = journal;
+	}
+
+	public EditJournal getJournal() {
+		return mJournal;
+	}
+
+	/** 写出修改后的.rodata */
+	private void writeRodata(LEDataOutputStream lmOut) throws IOException {
+		long time = begin(PhaseListener.Phase.WRITE_RODATA), alloc = allocated();
+		try {
+			writeRodata(ro_items, mRoDataStringTable, lmOut);
+		} finally {
+			report(PhaseListener.Phase.WRITE_RODATA, time, alloc, mRoDataStringTable.capacity());
+		}
+	}
+
+	/**
+	 * 按顺序复制.rodata原数据并替换修改过的字符串，段数据本身不会被修改
+	 */
+	static void writeRodata(List<ItemHelper> items, ByteBuffer table, LEDataOutputStream lmOut) throws IOException {
+		ByteBuffer src = table.duplicate();
+		int position = 0;
+		for (ItemHelper item : rodataEdits(items, table.capacity())) {
+			src.limit(item.offset).position(position);
+			lmOut.write(src);
+			byte[] data = rodataBytes(item, table.capacity());
+			lmOut.writeFully(data);
+			position = item.offset + data.length;
+		}
+		src.limit(table.capacity()).position(position);
+		lmOut.write(src);
+	}
+
+	/**
+	 * 修改过的.rodata字符串，按偏移排序，去掉与前一个修改重叠的
+	 */
+	static List<ItemHelper> rodataEdits(List<ItemHelper> items, int size) {
+		List<ItemHelper> edited = new ArrayList<ItemHelper>();
+		if (items == null) {
+			return edited;
+		}
+		for (ItemHelper item : items) {
+			// 没有偏移的字符串无法定位
+			if (item.newVal != null && !item.newVal.equals("") && item.offset != -1 && item.offset < size) {
+				edited.add(item);
+			}
+		}
+		Collections.sort(edited, new Comparator<ItemHelper>() {
+			@Override
+			public int compare(ItemHelper a, ItemHelper b) {
+				return a.offset - b.offset;
+			}
+		});
+		int end = 0;
+		for (Iterator<ItemHelper> it = edited.iterator(); it.hasNext();) {
+			ItemHelper item = it.next();
+			if (item.offset < end) {
+				it.remove();
+			} else {
+				end = item.offset + rodataBytes(item, size).length;
+			}
+		}
+		return edited;
+	}
+
+	/**
+	 * 修改后的字符串数据，不足原长度的部分用20填充，以保证文件大小不变
+	 */
+	static byte[] rodataBytes(ItemHelper item, int size) {
+		byte[] data = item.newVal.getBytes();
+		byte[] result = new byte[Math.min(Math.max(data.length, item.length), size - item.offset)];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = i < data.length ? data[i] : 20;
+		}
+		return result;
+	}
+
 	/** 在内存中搜索数据 **/
 	public static int findBytesPos(byte[] data, byte[] found) {
 		for (int i = 0; i < data.length; i++) {
@@ -0,0 +1,618 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * APK/AAR等ZIP压缩包中的so文件编辑，不解压整个压缩包
+ * 读取时映射整个压缩包并解析中央目录，未压缩(STORED)的so直接从映射区读取；
+ * 写出时未修改的条目原样复制(包括本地文件头和数据描述符)，不重新压缩，只重写修改过的so
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import zhao.elf.editor.IO.LEDataOutputStream;
+
+public class ElfArchive implements Closeable {
+	private static final int LOCAL_MAGIC = 0x04034b50;
+	private static final int CENTRAL_MAGIC = 0x02014b50;
+	private static final int END_MAGIC = 0x06054b50;
+	private static final int DESCRIPTOR_MAGIC = 0x08074b50;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_SIZE = 22;
+	/** 通用标志位3，表示文件数据后跟数据描述符 */
+	private static final int FLAG_DESCRIPTOR = 1 << 3;
+	/** 通用标志位1、2，DEFLATED条目的压缩级别，0为默认级别 */
+	private static final int FLAG_LEVEL = 3 << 1;
+	/** zipalign使用的扩展字段，用0填充使文件数据对齐 */
+	private static final int ALIGNMENT_EXTRA_ID = 0xd935;
+	/** 未压缩的普通条目按4字节对齐，与zipalign相同 */
+	private static final int DEFAULT_ALIGNMENT = 4;
+
+	public static final int PAGE_SIZE_4K = 4096;
+	/** Android 15开始支持16K内存页 */
+	public static final int PAGE_SIZE_16K = 16384;
+
+	public static final int STORED = 0;
+	public static final int DEFLATED = 8;
+
+	/** 压缩包中的一个条目 */
+	public static class Entry {
+		private final String name;
+		/** 中央目录中的原始记录，写出时只修改其中的CRC、大小和偏移 */
+		private final byte[] central;
+		private final int flags;
+		private final int method;
+		private final int crc;
+		private final long compressedSize;
+		private final long size;
+		private final long localOffset;
+		/** 文件数据的偏移，跳过本地文件头 */
+		private long dataOffset;
+		/** 本地文件头+数据+数据描述符的结束位置 */
+		private long end;
+
+		private Entry(String name, byte[] central) {
+			ByteBuffer buffer = ByteBuffer.wrap(central).order(ByteOrder.LITTLE_ENDIAN);
+			this.name = name;
+			this.central = central;
+			this.flags = buffer.getShort(8) & 0xffff;
+			this.method = buffer.getShort(10) & 0xffff;
+			this.crc = buffer.getInt(16);
+			this.compressedSize = buffer.getInt(20) & 0xffffffffL;
+			this.size = buffer.getInt(24) & 0xffffffffL;
+			this.localOffset = buffer.getInt(42) & 0xffffffffL;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getMethod() {
+			return method;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		public int getCrc() {
+			return crc;
+		}
+
+		public long getDataOffset() {
+			return dataOffset;
+		}
+
+		/** 是否为lib目录下的so文件 */
+		public boolean isLibrary() {
+			return name.startsWith("lib/") && name.endsWith(".so");
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private final RandomAccessFile mFile;
+	private final MappedByteBuffer mBuffer;
+	private final List<Entry> mEntries;
+	/** 中央目录的起始位置，v2签名块等位于最后一个条目和中央目录之间 */
+	private final long mCentralOffset;
+	/** 修改过的so，写出时重写 */
+	private final Map<Entry, Elf> mPatched = new LinkedHashMap<Entry, Elf>();
+	/** 未压缩so的数据对齐大小，0表示保持原来的布局 */
+	private int mPageSize = PAGE_SIZE_4K;
+
+	/**
+	 * 打开压缩包，只读取中央目录
+	 */
+	public ElfArchive(File file) throws IOException {
+		mFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = mFile.getChannel();
+			mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			int end = findEnd(mBuffer);
+			int count = mBuffer.getShort(end + 10) & 0xffff;
+			long centralSize = mBuffer.getInt(end + 12) & 0xffffffffL;
+			mCentralOffset = mBuffer.getInt(end + 16) & 0xffffffffL;
+			if (count == 0xffff || mCentralOffset == 0xffffffffL || mCentralOffset + centralSize > end) {
+				throw new IOException("Zip64 archives are not supported");
+			}
+			mEntries = readEntries(count);
+		} catch (IOException | RuntimeException e) {
+			mFile.close();
+			throw e;
+		}
+	}
+
+	/** 从文件末尾向前查找中央目录结束记录，注释最长65535字节 */
+	private static int findEnd(ByteBuffer buffer) throws IOException {
+		int limit = Math.max(0, buffer.limit() - END_SIZE - 0xffff);
+		for (int i = buffer.limit() - END_SIZE; i >= limit; i--) {
+			if (buffer.getInt(i) == END_MAGIC && i + END_SIZE + (buffer.getShort(i + 20) & 0xffff) == buffer.limit()) {
+				return i;
+			}
+		}
+		throw new IOException("Not a zip archive");
+	}
+
+	private List<Entry> readEntries(int count) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>(count);
+		int pos = (int) mCentralOffset;
+		for (int i = 0; i < count; i++) {
+			if (mBuffer.getInt(pos) != CENTRAL_MAGIC) {
+				throw new IOException("Bad central directory entry at " + pos);
+			}
+			int nameLength = mBuffer.getShort(pos + 28) & 0xffff;
+			int length = CENTRAL_HEADER_SIZE + nameLength + (mBuffer.getShort(pos + 30) & 0xffff)
+					+ (mBuffer.getShort(pos + 32) & 0xffff);
+			byte[] central = new byte[length];
+			ByteBuffer view = mBuffer.duplicate();
+			view.position(pos);
+			view.get(central);
+			Entry entry = new Entry(new String(central, CENTRAL_HEADER_SIZE, nameLength, "UTF-8"), central);
+			if (entry.compressedSize == 0xffffffffL || entry.localOffset == 0xffffffffL) {
+				throw new IOException("Zip64 archives are not supported");
+			}
+			locate(entry);
+			entries.add(entry);
+			pos += length;
+		}
+		return Collections.unmodifiableList(entries);
+	}
+
+	/** 由本地文件头确定数据位置和条目结束位置 */
+	private void locate(Entry entry) throws IOException {
+		int local = (int) entry.localOffset;
+		if (mBuffer.getInt(local) != LOCAL_MAGIC) {
+			throw new IOException("Bad local header for " + entry.name);
+		}
+		entry.dataOffset = local + LOCAL_HEADER_SIZE + (mBuffer.getShort(local + 26) & 0xffff)
+				+ (mBuffer.getShort(local + 28) & 0xffff);
+		entry.end = entry.dataOffset + entry.compressedSize;
+		if ((entry.flags & FLAG_DESCRIPTOR) != 0) {
+			// 数据描述符的签名是可选的
+			entry.end += mBuffer.getInt((int) entry.end) == DESCRIPTOR_MAGIC ? 16 : 12;
+		}
+	}
+
+	public List<Entry> getEntries() {
+		return mEntries;
+	}
+
+	/** 获取所有lib/<abi>/*.so */
+	public List<Entry> getLibraries() {
+		List<Entry> result = new ArrayList<Entry>();
+		for (Entry entry : mEntries) {
+			if (entry.isLibrary()) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	public Entry getEntry(String name) {
+		for (Entry entry : mEntries) {
+			if (entry.name.equals(name)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 获取条目压缩后的数据，返回映射区的只读视图，不复制数据
+	 */
+	public ByteBuffer getRawData(Entry entry) {
+		ByteBuffer view = mBuffer.duplicate();
+		view.position((int) entry.dataOffset);
+		view.limit((int) (entry.dataOffset + entry.compressedSize));
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * 获取条目解压后的数据，STORED条目直接从映射区复制，DEFLATED条目边读边解压
+	 */
+	public byte[] getData(Entry entry) throws IOException {
+		if (entry.size > Integer.MAX_VALUE) {
+			throw new IOException(entry.name + " is too large");
+		}
+		byte[] data = new byte[(int) entry.size];
+		ByteBuffer raw = getRawData(entry);
+		if (entry.method == STORED) {
+			raw.get(data);
+			return data;
+		}
+		if (entry.method != DEFLATED) {
+			throw new IOException("Unsupported compression method " + entry.method + " for " + entry.name);
+		}
+		Inflater inflater = new Inflater(true);
+		try {
+			byte[] chunk = new byte[64 * 1024];
+			int count = 0;
+			while (count < data.length) {
+				if (inflater.needsInput()) {
+					int n = Math.min(chunk.length, raw.remaining());
+					raw.get(chunk, 0, n);
+					inflater.setInput(chunk, 0, n);
+				}
+				int n = inflater.inflate(data, count, data.length - count);
+				if (n == 0 && (inflater.finished() || inflater.needsDictionary() || !raw.hasRemaining() && inflater.needsInput())) {
+					throw new IOException("Truncated entry " + entry.name);
+				}
+				count += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(entry.name + ": " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return data;
+	}
+
+	/**
+	 * 解析压缩包中的so文件，STORED条目直接在映射区上解析，只有DEFLATED条目需要解压到堆上
+	 */
+	public Elf openElf(Entry entry) throws IOException {
+		if (entry.method == STORED) {
+			return new Elf(getRawData(entry));
+		}
+		return new Elf(getData(entry));
+	}
+
+	/**
+	 * 标记so文件已修改，写出时用{@link Elf#writeELF}的结果替换原来的数据
+	 */
+	public void setPatched(Entry entry, Elf elf) {
+		if (elf == null) {
+			mPatched.remove(entry);
+		} else {
+			mPatched.put(entry, elf);
+		}
+	}
+
+	public boolean isPatched(Entry entry) {
+		return mPatched.containsKey(entry);
+	}
+
+	/**
+	 * 设置未压缩so的数据对齐大小，对齐后可以直接从APK中映射加载(extractNativeLibs=false)
+	 *
+	 * @param pageSize
+	 *            {@link #PAGE_SIZE_4K}、{@link #PAGE_SIZE_16K}，0表示不做任何对齐
+	 */
+	public void setPageSize(int pageSize) {
+		mPageSize = pageSize;
+	}
+
+	/**
+	 * 检查so的PT_LOAD段是否兼容指定的内存页大小
+	 *
+	 * @return 不兼容的so
+	 */
+	public List<Entry> checkLoadAlignment(int pageSize) throws IOException {
+		List<Entry> result = new ArrayList<Entry>();
+		for (Entry entry : getLibraries()) {
+			Elf elf = mPatched.get(entry);
+			if (elf == null) {
+				elf = openElf(entry);
+				elf.close();
+			}
+			if (!elf.isLoadAligned(pageSize)) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 写出新的压缩包
+	 * 原有的APK签名块会被丢弃，修改后它已经失效，需要重新签名
+	 */
+	public void write(OutputStream os) throws IOException {
+		LEDataOutputStream lmOut = new LEDataOutputStream(os);
+		byte[] central = writeEntries(lmOut, null);
+		long centralOffset = lmOut.size();
+		lmOut.writeFully(central);
+		lmOut.writeFully(endRecord(central.length, centralOffset));
+		lmOut.finish();
+	}
+
+	/**
+	 * 写出新的压缩包并重新签名，条目数据写完后映射到内存计算摘要，签名块插入到中央目录之前
+	 *
+	 * @param signer
+	 *            为null时不签名
+	 */
+	public void write(File file, ApkSigner signer) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			LEDataOutputStream lmOut = new LEDataOutputStream(channel);
+			byte[] central = writeEntries(lmOut, channel);
+			lmOut.flush();
+			long centralOffset = lmOut.size();
+			byte[] end = endRecord(central.length, centralOffset);
+			if (signer != null) {
+				ByteBuffer entries = channel.map(FileChannel.MapMode.READ_ONLY, 0, centralOffset);
+				byte[] block = signer.sign(new ByteBuffer[] { entries, ByteBuffer.wrap(central), ByteBuffer.wrap(end) });
+				lmOut.writeFully(block);
+				end = endRecord(central.length, centralOffset + block.length);
+			}
+			lmOut.writeFully(central);
+			lmOut.writeFully(end);
+			lmOut.close();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * 写入所有条目
+	 *
+	 * @param channel
+	 *            lmOut写入的文件，用来回填修改过的条目的本地文件头，输出不能回写时为null
+	 * @return 新的中央目录
+	 */
+	private byte[] writeEntries(LEDataOutputStream lmOut, FileChannel channel) throws IOException {
+		ByteArrayOutputStream central = new ByteArrayOutputStream();
+		for (Entry entry : mEntries) {
+			long offset = lmOut.size();
+			Elf elf = mPatched.get(entry);
+			byte[] record = entry.central.clone();
+			ByteBuffer directory = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+			byte[] header = localHeader(entry);
+			int alignment = alignmentOf(entry);
+			if (alignment > 0 && (offset + header.length) % alignment != 0) {
+				header = align(header, offset, alignment);
+			}
+			if (elf == null || !elf.isDirty()) {
+				// 未修改的条目原样复制数据和数据描述符
+				ByteBuffer view = mBuffer.duplicate();
+				view.position((int) entry.dataOffset);
+				view.limit((int) entry.end);
+				lmOut.writeFully(header);
+				lmOut.write(view);
+			} else {
+				writePatched(entry, elf, header, directory, lmOut, channel);
+			}
+			directory.putInt(42, (int) offset);
+			central.write(record);
+		}
+		return central.toByteArray();
+	}
+
+	/** 中央目录结束记录，保留原注释 */
+	private byte[] endRecord(int centralSize, long centralOffset) throws IOException {
+		ByteBuffer end = mBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int endOffset = findEnd(end);
+		byte[] record = new byte[end.limit() - endOffset];
+		end.position(endOffset);
+		end.get(record);
+		ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN).putInt(12, centralSize).putInt(16, (int) centralOffset);
+		return record;
+	}
+
+	/**
+	 * 写入修改过的so，保持原来的压缩方式，同时修正中央目录记录
+	 * 数据边生成边计算CRC、边压缩边写入，写完后回填本地文件头中的CRC和大小，输出不能回写时DEFLATED条目改用数据描述符
+	 */
+	private void writePatched(Entry entry, Elf elf, byte[] header, ByteBuffer central, LEDataOutputStream lmOut,
+			FileChannel channel) throws IOException {
+		if (entry.method != STORED && entry.method != DEFLATED) {
+			throw new IOException("Unsupported compression method " + entry.method + " for " + entry.name);
+		}
+		int flags = entry.flags & ~FLAG_LEVEL; // 按默认级别压缩
+		ByteBuffer local = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+		EntryOutputStream out;
+		int compressedSize;
+		if (channel == null && entry.method == STORED) {
+			// 流式读取(ZipInputStream)不支持带数据描述符的STORED条目，只能先生成到内存，得到CRC后再写出
+			flags &= ~FLAG_DESCRIPTOR;
+			ByteArrayOutputStream bos = new ByteArrayOutputStream((int) entry.size);
+			out = new EntryOutputStream(bos);
+			elf.writeELF(out);
+			compressedSize = bos.size();
+			local.putShort(6, (short) flags).putInt(14, out.crc()).putInt(18, compressedSize).putInt(22, (int) out.size);
+			lmOut.writeFully(header);
+			bos.writeTo(new UnclosableOutputStream(lmOut));
+		} else {
+			flags = channel == null ? flags | FLAG_DESCRIPTOR : flags & ~FLAG_DESCRIPTOR;
+			local.putShort(6, (short) flags).putInt(14, 0).putInt(18, 0).putInt(22, 0);
+			long headerOffset = lmOut.size();
+			lmOut.writeFully(header);
+			long dataOffset = lmOut.size();
+			Deflater deflater = entry.method == DEFLATED ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+			try {
+				OutputStream target = new UnclosableOutputStream(lmOut);
+				if (deflater != null) {
+					target = new DeflaterOutputStream(target, deflater, 64 * 1024);
+				}
+				out = new EntryOutputStream(target);
+				elf.writeELF(out); // 写完时关闭输出流，结束压缩
+			} finally {
+				if (deflater != null) {
+					deflater.end();
+				}
+			}
+			compressedSize = (int) (lmOut.size() - dataOffset);
+			if (channel == null) {
+				lmOut.writeInt(DESCRIPTOR_MAGIC);
+				lmOut.writeInt(out.crc());
+				lmOut.writeInt(compressedSize);
+				lmOut.writeInt((int) out.size);
+			} else {
+				// 先写出缓冲区，回填的内容不会再被缓冲区中的文件头覆盖
+				lmOut.flush();
+				ByteBuffer patch = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+				patch.putInt(out.crc()).putInt(compressedSize).putInt((int) out.size).flip();
+				long position = headerOffset + 14;
+				while (patch.hasRemaining()) {
+					position += channel.write(patch, position);
+				}
+			}
+		}
+		central.putShort(8, (short) flags);
+		central.putInt(16, out.crc()).putInt(20, compressedSize).putInt(24, (int) out.size);
+	}
+
+	/** 写入压缩包的输出流，关闭时不关闭压缩包 */
+	private static final class UnclosableOutputStream extends OutputStream {
+		private final LEDataOutputStream mOut;
+
+		UnclosableOutputStream(LEDataOutputStream out) {
+			mOut = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			mOut.writeByte((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			mOut.writeFully(b, off, len);
+		}
+	}
+
+	/** 计算写入数据的CRC和压缩前的大小 */
+	private static final class EntryOutputStream extends CheckedOutputStream {
+		long size;
+
+		EntryOutputStream(OutputStream out) {
+			super(out, new CRC32());
+		}
+
+		int crc() {
+			return (int) getChecksum().getValue();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			super.write(b);
+			size++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			size += len;
+		}
+	}
+
+	/** 读取原来的本地文件头 */
+	private byte[] localHeader(Entry entry) {
+		byte[] header = new byte[(int) (entry.dataOffset - entry.localOffset)];
+		ByteBuffer view = mBuffer.duplicate();
+		view.position((int) entry.localOffset);
+		view.get(header);
+		return header;
+	}
+
+	/** 条目数据需要的对齐大小，压缩过的条目不需要对齐 */
+	private int alignmentOf(Entry entry) {
+		if (mPageSize == 0 || entry.method != STORED) {
+			return 0;
+		}
+		return entry.isLibrary() ? mPageSize : DEFAULT_ALIGNMENT;
+	}
+
+	/**
+	 * 去掉本地文件头中原有的对齐字段，再加上新的对齐字段，使文件数据从alignment的整数倍处开始
+	 *
+	 * @return 扩展字段超出长度限制时返回原文件头
+	 */
+	private static byte[] align(byte[] header, long offset, int alignment) {
+		ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+		int nameLength = buffer.getShort(26) & 0xffff;
+		int extraStart = LOCAL_HEADER_SIZE + nameLength;
+		ByteArrayOutputStream extra = new ByteArrayOutputStream();
+		int pos = extraStart;
+		while (pos + 4 <= header.length) {
+			int id = buffer.getShort(pos) & 0xffff;
+			int size = buffer.getShort(pos + 2) & 0xffff;
+			if (pos + 4 + size > header.length) {
+				// 扩展字段格式不正确，原样保留
+				extra.write(header, pos, header.length - pos);
+				pos = header.length;
+				break;
+			}
+			if (id != ALIGNMENT_EXTRA_ID) {
+				extra.write(header, pos, 4 + size);
+			}
+			pos += 4 + size;
+		}
+		extra.write(header, pos, header.length - pos);
+
+		long dataOffset = offset + extraStart + extra.size() + 6;
+		int padding = (int) ((alignment - dataOffset % alignment) % alignment);
+		int extraLength = extra.size() + 6 + padding;
+		if (extraLength > 0xffff) {
+			return header;
+		}
+		ByteBuffer result = ByteBuffer.allocate(extraStart + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+		result.put(header, 0, extraStart);
+		result.putShort(28, (short) extraLength);
+		result.put(extra.toByteArray());
+		result.putShort((short) ALIGNMENT_EXTRA_ID).putShort((short) (2 + padding)).putShort((short) alignment);
+		return result.array();
+	}
+
+	@Override
+	public void close() throws IOException {
+		mFile.close();
+	}
+}
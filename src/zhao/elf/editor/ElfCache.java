@@ -0,0 +1,300 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * ELF解析结果缓存，以sidecar文件形式保存在so文件旁边
+ * 文件格式(小端): 文件头(魔数、版本、文件大小、修改时间、摘要、rodata过滤条件) + 节区头部表 + hash表大小 + dynstr偏移表/符号索引 + rodata偏移表/长度表
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import zhao.elf.editor.Elf.Elf32_Shdr;
+import zhao.elf.editor.Elf.Elf64_Shdr;
+import zhao.elf.editor.Elf.Elf_Shdr;
+import zhao.elf.editor.Elf.ItemHelper;
+
+public class ElfCache {
+	/** 缓存文件后缀 */
+	public static final String SUFFIX = ".elfcache";
+
+	private static final int MAGIC = 0x43464c45; // "ELFC"
+	private static final int VERSION = 3;
+	/** 每个节区头部保存的字段数 */
+	private static final int SECTION_FIELDS = 10;
+	/** 计算摘要时读取的文件头大小，64位文件头的大小 */
+	private static final int DIGEST_HEADER = 64;
+
+	long[][] sections;
+	int num_buckets;
+	int num_chains;
+	int[] dyOffsets;
+	int[] dySymbols;
+	int[] roOffsets; // 没有.rodata段时为null
+	int[] roLengths;
+
+	private ElfCache() {
+	}
+
+	/** 获取so文件对应的缓存文件 */
+	public static File sidecarOf(File file) {
+		return new File(file.getPath() + SUFFIX);
+	}
+
+	/**
+	 * 文件头、程序头部表和节区头部表的CRC32，与文件大小、修改时间一起判断文件是否变化
+	 * 只读取几KB，打开文件时计算一次，由缓存和编辑日志共用
+	 */
+	static int digest(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			CRC32 crc = new CRC32();
+			byte[] head = new byte[DIGEST_HEADER];
+			int count = (int) Math.min(head.length, raf.length());
+			raf.readFully(head, 0, count);
+			crc.update(head, 0, count);
+			if (count < DIGEST_HEADER) {
+				return (int) crc.getValue();
+			}
+			ByteBuffer header = ByteBuffer.wrap(head).order(
+					head[Elf.EI_DATA] == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+			long phoff, shoff;
+			int phsize, shsize;
+			if (head[Elf.EI_CLASS] == 2) {
+				phoff = header.getLong(0x20);
+				shoff = header.getLong(0x28);
+				phsize = (header.getShort(0x36) & 0xffff) * (header.getShort(0x38) & 0xffff);
+				shsize = (header.getShort(0x3a) & 0xffff) * (header.getShort(0x3c) & 0xffff);
+			} else {
+				phoff = header.getInt(0x1c) & 0xffffffffL;
+				shoff = header.getInt(0x20) & 0xffffffffL;
+				phsize = (header.getShort(0x2a) & 0xffff) * (header.getShort(0x2c) & 0xffff);
+				shsize = (header.getShort(0x2e) & 0xffff) * (header.getShort(0x30) & 0xffff);
+			}
+			update(crc, raf, phoff, phsize);
+			update(crc, raf, shoff, shsize);
+			return (int) crc.getValue();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** 把文件中offset开始的size字节加入摘要，超出文件的部分忽略 */
+	private static void update(CRC32 crc, RandomAccessFile raf, long offset, int size) throws IOException {
+		if (offset <= 0 || size <= 0 || offset >= raf.length()) {
+			return;
+		}
+		byte[] buffer = new byte[(int) Math.min(size, raf.length() - offset)];
+		raf.seek(offset);
+		raf.readFully(buffer);
+		crc.update(buffer);
+	}
+
+	/**
+	 * 读取缓存
+	 *
+	 * @param digest
+	 *            打开文件时计算的{@link #digest(File)}
+	 * @return 缓存不存在、已损坏或与文件不匹配时返回null
+	 */
+	public static ElfCache load(File file, int digest) {
+		File sidecar = sidecarOf(file);
+		if (!sidecar.isFile()) {
+			return null;
+		}
+		try {
+			FileInputStream fis = new FileInputStream(sidecar);
+			try {
+				FileChannel channel = fis.getChannel();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				buffer.order(ByteOrder.LITTLE_ENDIAN);
+				if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+					return null;
+				}
+				if (buffer.getLong() != file.length() || buffer.getLong() != file.lastModified()
+						|| buffer.getInt() != digest) {
+					return null;
+				}
+				// 过滤条件改变后条目不同，需要重新解析
+				if (buffer.getInt() != Elf.getRoDataMinLength() || buffer.getFloat() != Elf.getRoDataPrintableRatio()) {
+					return null;
+				}
+				ElfCache cache = new ElfCache();
+				cache.sections = new long[buffer.getInt()][SECTION_FIELDS];
+				for (long[] section : cache.sections) {
+					getLongs(buffer, section);
+				}
+				cache.num_buckets = buffer.getInt();
+				cache.num_chains = buffer.getInt();
+				int count = buffer.getInt();
+				cache.dyOffsets = getInts(buffer, count);
+				cache.dySymbols = getInts(buffer, count);
+				count = buffer.getInt();
+				if (count >= 0) {
+					cache.roOffsets = getInts(buffer, count);
+					cache.roLengths = getInts(buffer, count);
+				}
+				return cache;
+			} finally {
+				fis.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			// 缓存损坏时重新解析即可
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * 写入缓存，写入失败不影响正常使用
+	 */
+	public static void save(File file, Elf elf) {
+		Elf_Shdr[] sections = elf.getSectionHeaders();
+		List<ItemHelper> dy = elf.dy_items;
+		List<ItemHelper> ro = elf.ro_items;
+		int size = 4 * 2 + 8 * 2 + 4 + 4 * 2 + 4 + sections.length * SECTION_FIELDS * 8 + 4 * 2 + 4 + dy.size() * 8 + 4
+				+ (ro == null ? 0 : ro.size() * 8);
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			buffer.putInt(MAGIC).putInt(VERSION);
+			buffer.putLong(file.length()).putLong(file.lastModified()).putInt(elf.getDigest());
+			buffer.putInt(Elf.getRoDataMinLength()).putFloat(Elf.getRoDataPrintableRatio());
+			buffer.putInt(sections.length);
+			for (Elf_Shdr sec : sections) {
+				putSection(buffer, sec);
+			}
+			buffer.putInt(elf.num_buckets).putInt(elf.num_chains);
+			buffer.putInt(dy.size());
+			for (ItemHelper item : dy) {
+				buffer.putInt(item.offset);
+			}
+			for (ItemHelper item : dy) {
+				buffer.putInt(item.sym_offset);
+			}
+			if (ro == null) {
+				buffer.putInt(-1);
+			} else {
+				buffer.putInt(ro.size());
+				for (ItemHelper item : ro) {
+					buffer.putInt(item.offset);
+				}
+				for (ItemHelper item : ro) {
+					buffer.putInt(item.length);
+				}
+			}
+			buffer.flip();
+			FileOutputStream fos = new FileOutputStream(sidecarOf(file));
+			try {
+				FileChannel channel = fos.getChannel();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			} finally {
+				fos.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** 由缓存还原节区头部表 */
+	Elf_Shdr[] restoreSections(boolean is64bit) {
+		Elf_Shdr[] result = new Elf_Shdr[sections.length];
+		for (int i = 0; i < sections.length; i++) {
+			long[] v = sections[i];
+			if (is64bit) {
+				Elf64_Shdr sec = new Elf64_Shdr();
+				sec.sh_flags = v[2];
+				sec.sh_addr = v[3];
+				sec.sh_offset = v[4];
+				sec.sh_size = v[5];
+				sec.sh_addralign = v[8];
+				sec.sh_entsize = v[9];
+				result[i] = sec;
+			} else {
+				Elf32_Shdr sec = new Elf32_Shdr();
+				sec.sh_flags = (int) v[2];
+				sec.sh_addr = (int) v[3];
+				sec.sh_offset = (int) v[4];
+				sec.sh_size = (int) v[5];
+				sec.sh_addralign = (int) v[8];
+				sec.sh_entsize = (int) v[9];
+				result[i] = sec;
+			}
+			result[i].sh_name = (int) v[0];
+			result[i].sh_type = (int) v[1];
+			result[i].sh_link = (int) v[6];
+			result[i].sh_info = (int) v[7];
+			result[i].index = i;
+		}
+		return result;
+	}
+
+	private static void putSection(ByteBuffer buffer, Elf_Shdr sec) {
+		buffer.putLong(sec.sh_name).putLong(sec.sh_type);
+		if (sec instanceof Elf64_Shdr) {
+			Elf64_Shdr s = (Elf64_Shdr) sec;
+			buffer.putLong(s.sh_flags).putLong(s.sh_addr).putLong(s.sh_offset).putLong(s.sh_size);
+		} else {
+			Elf32_Shdr s = (Elf32_Shdr) sec;
+			buffer.putLong(s.sh_flags).putLong(s.sh_addr).putLong(s.sh_offset).putLong(s.sh_size);
+		}
+		buffer.putLong(sec.sh_link).putLong(sec.sh_info);
+		if (sec instanceof Elf64_Shdr) {
+			Elf64_Shdr s = (Elf64_Shdr) sec;
+			buffer.putLong(s.sh_addralign).putLong(s.sh_entsize);
+		} else {
+			Elf32_Shdr s = (Elf32_Shdr) sec;
+			buffer.putLong(s.sh_addralign).putLong(s.sh_entsize);
+		}
+	}
+
+	/** 批量读取int数组 */
+	private static int[] getInts(ByteBuffer buffer, int count) {
+		int[] array = new int[count];
+		buffer.asIntBuffer().get(array);
+		buffer.position(buffer.position() + count * 4);
+		return array;
+	}
+
+	/** 批量读取long数组 */
+	private static void getLongs(ByteBuffer buffer, long[] array) {
+		buffer.asLongBuffer().get(array);
+		buffer.position(buffer.position() + array.length * 8);
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * ELF二进制补丁，由若干(偏移, 长度, 数据)组成，并记录原文件的大小和CRC32，应用到不一致的文件上时会被拒绝
+ * 文件格式(小端): 魔数、版本、原文件大小、原文件CRC32、数据段个数，之后是按偏移排序的数据段
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import zhao.elf.editor.IO.LEDataInputStream;
+import zhao.elf.editor.IO.LEDataOutputStream;
+
+public class ElfPatch {
+	private static final int MAGIC = 0x50464c45; // "ELFP"
+	private static final int VERSION = 1;
+	/** 两段修改之间相差不超过该字节数时合并为一段，省去一个段头 */
+	private static final int MERGE_GAP = 12;
+
+	/** 补丁中的一段数据 */
+	public static class Run {
+		public final long offset;
+		public final byte[] data;
+
+		public Run(long offset, byte[] data) {
+			this.offset = offset;
+			this.data = data;
+		}
+	}
+
+	private final long mBaseSize;
+	private final int mBaseCrc;
+	private final List<Run> mRuns = new ArrayList<Run>();
+
+	public ElfPatch(long baseSize, int baseCrc) {
+		mBaseSize = baseSize;
+		mBaseCrc = baseCrc;
+	}
+
+	public long getBaseSize() {
+		return mBaseSize;
+	}
+
+	public int getBaseCrc() {
+		return mBaseCrc;
+	}
+
+	public List<Run> getRuns() {
+		return mRuns;
+	}
+
+	/**
+	 * 比较一段数据修改前后的内容，把不同的部分加入补丁
+	 *
+	 * @param base
+	 *            数据在文件中的偏移
+	 */
+	public void diff(long base, byte[] oldData, byte[] newData) {
+		int common = Math.min(oldData.length, newData.length);
+		int i = 0;
+		while (i < common) {
+			if (oldData[i] == newData[i]) {
+				i++;
+				continue;
+			}
+			int start = i;
+			int end = i + 1;
+			int same = 0;
+			for (i = end; i < common && same <= MERGE_GAP; i++) {
+				if (oldData[i] == newData[i]) {
+					same++;
+				} else {
+					same = 0;
+					end = i + 1;
+				}
+			}
+			i = end;
+			add(base + start, newData, start, end - start);
+		}
+		if (newData.length > common) {
+			add(base + common, newData, common, newData.length - common);
+		}
+	}
+
+	private void add(long offset, byte[] data, int start, int length) {
+		byte[] run = new byte[length];
+		System.arraycopy(data, start, run, 0, length);
+		// 保持按偏移排序
+		int index = mRuns.size();
+		while (index > 0 && mRuns.get(index - 1).offset > offset) {
+			index--;
+		}
+		mRuns.add(index, new Run(offset, run));
+	}
+
+	/** 写出补丁 */
+	public void write(OutputStream os) throws IOException {
+		LEDataOutputStream out = new LEDataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(mBaseSize);
+		out.writeInt(mBaseCrc);
+		out.writeInt(mRuns.size());
+		for (Run run : mRuns) {
+			out.writeLong(run.offset);
+			out.writeInt(run.data.length);
+			out.writeFully(run.data);
+		}
+		out.finish();
+	}
+
+	/** 读取补丁 */
+	public static ElfPatch read(InputStream is) throws IOException {
+		LEDataInputStream in = new LEDataInputStream(new BufferedInputStream(is));
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("Not an elf patch");
+		}
+		ElfPatch patch = new ElfPatch(in.readLong(), in.readInt());
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			long offset = in.readLong();
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			patch.mRuns.add(new Run(offset, data));
+		}
+		return patch;
+	}
+
+	/**
+	 * 流式应用补丁，只需顺序读写
+	 * 原文件的CRC32在复制的同时计算，不匹配时抛出异常，此时out中的数据不可用
+	 *
+	 * @param base
+	 *            原文件
+	 * @param patch
+	 *            补丁
+	 * @param out
+	 *            输出
+	 */
+	public static void apply(InputStream base, InputStream patch, OutputStream out) throws IOException {
+		LEDataInputStream in = new LEDataInputStream(new BufferedInputStream(patch));
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("Not an elf patch");
+		}
+		long baseSize = in.readLong();
+		int baseCrc = in.readInt();
+		int count = in.readInt();
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[8192];
+		long position = 0;
+		for (int i = 0; i <= count; i++) {
+			long offset;
+			byte[] data = null;
+			if (i < count) {
+				offset = in.readLong();
+				data = new byte[in.readInt()];
+				in.readFully(data);
+				if (offset < position || offset + data.length > baseSize) {
+					throw new IOException("Bad patch run at " + offset);
+				}
+			} else {
+				offset = baseSize;
+			}
+			// 复制未修改的部分
+			position += copy(base, out, crc, buffer, offset - position, true);
+			if (data != null) {
+				// 跳过被替换的部分
+				position += copy(base, out, crc, buffer, data.length, false);
+				out.write(data);
+			}
+		}
+		if (position != baseSize || base.read() != -1 || (int) crc.getValue() != baseCrc) {
+			throw new IOException("Patch does not match the base file");
+		}
+	}
+
+	/**
+	 * 应用补丁到映射的原文件上，先校验原文件，不匹配时不产生任何输出
+	 *
+	 * @param base
+	 *            原文件
+	 * @param patch
+	 *            补丁
+	 * @param out
+	 *            输出文件
+	 */
+	public static void apply(File base, InputStream patch, File out) throws IOException {
+		ElfPatch p = read(patch);
+		FileInputStream fis = new FileInputStream(base);
+		try {
+			FileChannel channel = fis.getChannel();
+			if (channel.size() != p.mBaseSize) {
+				throw new IOException("Patch does not match the base file");
+			}
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (checksum(mapped.duplicate()) != p.mBaseCrc) {
+				throw new IOException("Patch does not match the base file");
+			}
+			FileOutputStream fos = new FileOutputStream(out);
+			try {
+				FileChannel output = fos.getChannel();
+				long position = 0;
+				for (Run run : p.mRuns) {
+					if (run.offset < position || run.offset + run.data.length > p.mBaseSize) {
+						throw new IOException("Bad patch run at " + run.offset);
+					}
+					writeFully(output, slice(mapped, position, run.offset));
+					writeFully(output, ByteBuffer.wrap(run.data));
+					position = run.offset + run.data.length;
+				}
+				writeFully(output, slice(mapped, position, p.mBaseSize));
+			} finally {
+				fos.close();
+			}
+		} finally {
+			fis.close();
+		}
+	}
+
+	/** 从in复制(或跳过)length个字节，同时计算CRC32 */
+	private static long copy(InputStream in, OutputStream out, CRC32 crc, byte[] buffer, long length, boolean write)
+			throws IOException {
+		long remaining = length;
+		while (remaining > 0) {
+			int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (count == -1) {
+				throw new IOException("Patch does not match the base file");
+			}
+			crc.update(buffer, 0, count);
+			if (write) {
+				out.write(buffer, 0, count);
+			}
+			remaining -= count;
+		}
+		return length;
+	}
+
+	private static int checksum(ByteBuffer buffer) {
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[8192];
+		while (buffer.hasRemaining()) {
+			int count = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, count);
+			crc.update(chunk, 0, count);
+		}
+		return (int) crc.getValue();
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, long start, long end) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit((int) end);
+		slice.position((int) start);
+		return slice;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * ELF解析结果的只读快照，节区、符号名和字符串都不可修改，可以在多个线程间共享
+ * 修改记录在各自的{@link EditSet}中，同一个快照可以同时输出多个不同的修改版本
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import zhao.elf.editor.Elf.Elf_Shdr;
+import zhao.elf.editor.Elf.ItemHelper;
+import zhao.elf.editor.Elf.Region;
+import zhao.elf.editor.IO.LEDataInputStream;
+import zhao.elf.editor.IO.LEDataOutputStream;
+
+public class ElfSnapshot {
+	private final ByteBuffer mData; // 整个文件的只读视图
+	private final ByteOrder mOrder;
+	private final boolean mIs64bit;
+	private final String mName;
+	private final Elf_Shdr[] mSectionHeaders;
+	private final SectionDirectory mSections;
+	private final Elf_Shdr mHash;
+	private final Elf_Shdr mGnuHash;
+	private final Elf_Shdr mDynSym;
+	private final Elf_Shdr mDynString;
+	private final Elf_Shdr mRoData;
+	private final int num_buckets;
+	private final int num_chains;
+	private final ByteBuffer mDynStringTable;
+	private final List<Item> mDyItems;
+	private final List<Item> mRoItems; // 没有.rodata段时为空
+
+	/** 快照中的一个字符串，不可修改 */
+	public static final class Item {
+		private final String value;
+		private final int offset;
+		private final int symbol;
+		private final int length;
+
+		Item(ItemHelper item) {
+			value = item.oldval;
+			offset = item.offset;
+			symbol = item.sym_offset;
+			length = item.length;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		/** 字符串在所属段中的偏移，未知时为-1 */
+		public int getOffset() {
+			return offset;
+		}
+
+		/** 符号索引，不是符号名时为-1 */
+		public int getSymbol() {
+			return symbol;
+		}
+
+		@Override
+		public String toString() {
+			return value;
+		}
+	}
+
+	ElfSnapshot(Elf elf, ByteBuffer data) {
+		mOrder = data.order();
+		mIs64bit = elf.is64bit();
+		mData = data.asReadOnlyBuffer().order(mOrder);
+		mName = elf.getName();
+		// 复制节区头部，之后对Elf的修改不影响快照
+		Elf_Shdr[] sections = elf.getSectionHeaders();
+		mSectionHeaders = new Elf_Shdr[sections.length];
+		for (int i = 0; i < sections.length; i++) {
+			mSectionHeaders[i] = sections[i].copy();
+		}
+		mSections = new SectionDirectory(elf, mSectionHeaders);
+		mHash = mSections.get(Elf.SHN_HASH);
+		mGnuHash = mSections.getFirstByType(Elf.SHT_GNU_HASH);
+		mDynSym = mSections.get(Elf.SHN_DYNSYM);
+		mDynString = mDynSym == null ? null : mSectionHeaders[mDynSym.sh_link];
+		mRoData = mSections.get(Elf.SHN_RODATA);
+		num_buckets = elf.num_buckets;
+		num_chains = elf.num_chains;
+		mDynStringTable = elf.mDynStringTable == null ? null : elf.mDynStringTable.asReadOnlyBuffer();
+		mDyItems = freeze(elf.dy_items);
+		mRoItems = freeze(elf.ro_items);
+	}
+
+	private static List<Item> freeze(List<ItemHelper> items) {
+		if (items == null) {
+			return Collections.emptyList();
+		}
+		List<Item> list = new ArrayList<Item>(items.size());
+		for (ItemHelper item : items) {
+			list.add(new Item(item));
+		}
+		return Collections.unmodifiableList(list);
+	}
+
+	/** 文件名，不是从文件打开时为null */
+	public String getName() {
+		return mName;
+	}
+
+	/** 文件大小 */
+	public int size() {
+		return mData.capacity();
+	}
+
+	/** 整个文件的只读视图，每次调用返回独立的位置 */
+	public ByteBuffer getData() {
+		return mData.duplicate().order(mOrder);
+	}
+
+	/** 节区数据的只读视图 */
+	public ByteBuffer getSectionData(Elf_Shdr sec) {
+		return slice(sec.getOffset(), sec.getSize());
+	}
+
+	private ByteBuffer slice(long offset, int length) {
+		ByteBuffer buffer = mData.duplicate();
+		buffer.limit((int) offset + length).position((int) offset);
+		return buffer.slice().order(mOrder);
+	}
+
+	public Elf_Shdr[] getSectionHeaders() {
+		return mSectionHeaders.clone();
+	}
+
+	/** 按名称查找节区，不存在时返回null */
+	public Elf_Shdr getSectionByName(String name) {
+		return mSections.get(name);
+	}
+
+	/** 按文件偏移排序的节区 */
+	public List<Elf_Shdr> getSections() {
+		return mSections.getByOffset();
+	}
+
+	public boolean isLittleEndian() {
+		return mOrder == ByteOrder.LITTLE_ENDIAN;
+	}
+
+	/** 动态符号名 */
+	public List<Item> getDynStrings() {
+		return mDyItems;
+	}
+
+	/** .rodata中的字符串 */
+	public List<Item> getRoStrings() {
+		return mRoItems;
+	}
+
+	/** 新建一个空的修改集合 */
+	public EditSet edit() {
+		return new EditSet();
+	}
+
+	/**
+	 * 一次输出的修改集合，记录对快照中字符串的修改，不是线程安全的，每个线程使用自己的修改集合
+	 */
+	public final class EditSet {
+		private final Map<Integer, String> mDyEdits = new HashMap<Integer, String>();
+		private final Map<Integer, String> mRoEdits = new HashMap<Integer, String>();
+
+		private EditSet() {
+		}
+
+		/** 修改动态符号名，value为null时撤销修改 */
+		public EditSet setDynString(int index, String value) {
+			put(mDyEdits, mDyItems, index, value);
+			return this;
+		}
+
+		/** 修改.rodata中的字符串，value为null时撤销修改 */
+		public EditSet setRoString(int index, String value) {
+			put(mRoEdits, mRoItems, index, value);
+			return this;
+		}
+
+		private void put(Map<Integer, String> edits, List<Item> items, int index, String value) {
+			if (index < 0 || index >= items.size()) {
+				throw new IndexOutOfBoundsException("Invalid index " + index);
+			}
+			if (value == null) {
+				edits.remove(index);
+			} else {
+				edits.put(index, value);
+			}
+		}
+
+		public boolean isEmpty() {
+			return mDyEdits.isEmpty() && mRoEdits.isEmpty();
+		}
+
+		private ElfSnapshot owner() {
+			return ElfSnapshot.this;
+		}
+
+		/** 按修改集合输出到os，os不会被关闭 */
+		public void write(OutputStream os) throws IOException {
+			ElfSnapshot.this.write(this, os);
+		}
+	}
+
+	/**
+	 * 输出应用了修改集合的ELF，与{@link Elf#writeELF}使用相同的写入线程和有界队列，但不改变快照本身，可以在多个线程同时调用
+	 * @param os 输出流，不会被关闭
+	 */
+	public void write(EditSet edits, OutputStream os) throws IOException {
+		if (edits.owner() != this) {
+			throw new IllegalArgumentException("EditSet belongs to another snapshot");
+		}
+		LEDataInputStream source = new LEDataInputStream(getData());
+		source.setIsLittleEndian(isLittleEndian());
+		final LEDataOutputStream lmOut = new LEDataOutputStream(os);
+		lmOut.setIsLittleEndian(isLittleEndian());
+		try {
+			Elf.writeRegions(null, source, dirtyRegions(edits), isLittleEndian(), lmOut, null);
+		} finally {
+			lmOut.finish();
+		}
+	}
+
+	/** 按修改集合需要重新生成的段，与{@link Elf}中的规则相同 */
+	private List<Region> dirtyRegions(EditSet edits) {
+		List<Region> regions = new ArrayList<Region>();
+		final List<ItemHelper> dy_items = helpers(mDyItems, edits.mDyEdits);
+		if (mDynSym != null && Elf.isDirty(dy_items, false)) {
+			// .hash和.gnu.hash都按修改后的.dynstr计算
+			final Elf.DynString dynstr = new Elf.DynString(null, dy_items, mDynStringTable);
+			if (mHash != null) {
+				regions.add(new Region(mHash.getOffset(), num_buckets * 4 + num_chains * 4 + 8) {
+					@Override
+					void write(LEDataOutputStream lmOut) throws IOException {
+						Elf.writeDynHash(dy_items, num_buckets, num_chains, lmOut);
+					}
+				});
+			}
+			if (mGnuHash != null) {
+				regions.add(new Region(mGnuHash.getOffset(), mGnuHash.getSize()) {
+					@Override
+					void write(LEDataOutputStream lmOut) throws IOException {
+						Elf.writeGnuHash(getSectionData(mGnuHash), getSectionData(mDynSym), mIs64bit, dynstr.get(),
+								lmOut);
+					}
+				});
+			}
+			regions.add(new Region(mDynString.getOffset(), mDynStringTable.capacity()) {
+				@Override
+				void write(LEDataOutputStream lmOut) throws IOException {
+					dynstr.write(lmOut);
+				}
+			});
+		}
+		final List<ItemHelper> ro_items = helpers(mRoItems, edits.mRoEdits);
+		if (mRoData != null && Elf.isDirty(ro_items, true)) {
+			regions.add(new Region(mRoData.getOffset(), mRoData.getSize()) {
+				@Override
+				void write(LEDataOutputStream lmOut) throws IOException {
+					Elf.writeRodata(ro_items, getSectionData(mRoData), lmOut);
+				}
+			});
+		}
+		return regions;
+	}
+
+	/** 为一次输出建立独立的字符串列表 */
+	private static List<ItemHelper> helpers(List<Item> items, Map<Integer, String> edits) {
+		List<ItemHelper> list = new ArrayList<ItemHelper>(items.size());
+		for (int i = 0; i < items.size(); i++) {
+			Item item = items.get(i);
+			ItemHelper helper = new ItemHelper(item.value);
+			helper.offset = item.offset;
+			helper.sym_offset = item.symbol;
+			helper.length = item.length;
+			helper.newVal = edits.get(i);
+			list.add(helper);
+		}
+		return list;
+	}
+}
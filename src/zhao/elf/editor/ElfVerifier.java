@@ -0,0 +1,354 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * 保存后的校验，映射输出文件，重新读取符号表，检查每一个动态符号都能通过hash表找到
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UnknownFormatConversionException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import zhao.elf.editor.IO.LEDataInputStream;
+
+public class ElfVerifier {
+	/** 最多记录的失败符号数 */
+	private static final int MAX_FAILURES = 32;
+
+	/** 校验结果 */
+	public static class Result {
+		public int symbols; // 动态符号个数
+		public int checked; // 参与校验的符号个数
+		public final List<String> failures = new ArrayList<String>();
+		public int failureCount;
+		public long parseNanos; // 映射和读取表的耗时
+		public long lookupNanos; // 查找所有符号的耗时
+
+		public boolean isOk() {
+			return failureCount == 0;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("verified ").append(checked).append('/').append(symbols).append(" symbols, ")
+					.append(failureCount).append(" unresolved, parse ").append(parseNanos / 1000000).append("ms, lookup ")
+					.append(lookupNanos / 1000000).append("ms");
+			for (String failure : failures) {
+				sb.append('\n').append(failure);
+			}
+			return sb.toString();
+		}
+
+		synchronized void fail(String message) {
+			if (failures.size() < MAX_FAILURES) {
+				failures.add(message);
+			}
+			failureCount++;
+		}
+	}
+
+	/** 从映射的文件中读取的表 */
+	private static class Tables {
+		ByteBuffer buffer;
+		boolean is64bit;
+		int symOffset, symCount, symSize;
+		int strOffset, strSize;
+		int hashOffset = -1; // .hash
+		int gnuHashOffset = -1; // .gnu.hash
+	}
+
+	/**
+	 * 校验文件
+	 */
+	public static Result verify(File file) throws IOException {
+		return verify(file, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * 校验文件
+	 *
+	 * @param threads
+	 *            并行查找的线程数
+	 */
+	public static Result verify(File file, int threads) throws IOException {
+		final Result result = new Result();
+		long start = System.nanoTime();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		final Tables t;
+		try {
+			FileChannel channel = raf.getChannel();
+			t = readTables(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			raf.close();
+		}
+		result.symbols = t.symCount;
+		result.parseNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		threads = Math.max(1, Math.min(threads, t.symCount / 1024 + 1));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			int chunk = (t.symCount + threads - 1) / threads;
+			for (int from = 1; from < t.symCount; from += chunk) { // 0号符号为STN_UNDEF
+				final int begin = from;
+				final int end = Math.min(t.symCount, from + chunk);
+				futures.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						return check(t, result, begin, end);
+					}
+				}));
+			}
+			for (Future<Integer> future : futures) {
+				result.checked += future.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e.toString());
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause().toString());
+		} finally {
+			executor.shutdown();
+		}
+		result.lookupNanos = System.nanoTime() - start;
+		return result;
+	}
+
+	private static Tables readTables(ByteBuffer buffer) throws IOException {
+		Tables t = new Tables();
+		if (buffer.order(ByteOrder.BIG_ENDIAN).getInt(0) != 0x7F454C46) {
+			throw new IOException("Invalid elf magic");
+		}
+		t.is64bit = buffer.get(Elf.EI_CLASS) == 2;
+		buffer.order(buffer.get(Elf.EI_DATA) == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		t.buffer = buffer;
+		long shoff = t.is64bit ? buffer.getLong(0x28) : buffer.getInt(0x20) & 0xffffffffL;
+		int shentsize = buffer.getShort(t.is64bit ? 0x3a : 0x2e) & 0xffff;
+		int shnum = buffer.getShort(t.is64bit ? 0x3c : 0x30) & 0xffff;
+		if (shoff <= 0 || shentsize == 0 || shoff + (long) shnum * shentsize > buffer.capacity()) {
+			shnum = 0; // 节区头部表被去除或者被破坏
+		}
+		int dynsym = -1;
+		for (int i = 0; i < shnum; i++) {
+			int type = buffer.getInt((int) (shoff + i * shentsize + 4));
+			if (type == Elf.SHT_DYNSYM) {
+				dynsym = i;
+			} else if (type == Elf.SHT_HASH) {
+				t.hashOffset = (int) sectionOffset(t, shoff + i * shentsize);
+			} else if (type == Elf.SHT_GNU_HASH) {
+				t.gnuHashOffset = (int) sectionOffset(t, shoff + i * shentsize);
+			}
+		}
+		int link = dynsym == -1 ? -1 : buffer.getInt((int) (shoff + dynsym * shentsize) + (t.is64bit ? 0x28 : 0x18));
+		if (link < 0 || link >= shnum) {
+			// 与Elf一样，没有可用的.dynsym时通过PT_DYNAMIC定位
+			readDynamic(t);
+			return t;
+		}
+		long header = shoff + dynsym * shentsize;
+		t.symOffset = (int) sectionOffset(t, header);
+		t.symSize = t.is64bit ? 24 : 16;
+		t.symCount = (int) (sectionSize(t, header) / t.symSize);
+		long strHeader = shoff + (long) link * shentsize;
+		t.strOffset = (int) sectionOffset(t, strHeader);
+		t.strSize = (int) sectionSize(t, strHeader);
+		return t;
+	}
+
+	/** 根据PT_DYNAMIC中的DT_SYMTAB、DT_STRTAB、DT_HASH/DT_GNU_HASH定位各表，与Elf的解析相同 */
+	private static void readDynamic(Tables t) throws IOException {
+		ByteBuffer b = t.buffer;
+		long phoff = t.is64bit ? b.getLong(0x20) : b.getInt(0x1c) & 0xffffffffL;
+		int phentsize = b.getShort(t.is64bit ? 0x36 : 0x2a) & 0xffff;
+		int phnum = b.getShort(t.is64bit ? 0x38 : 0x2c) & 0xffff;
+		if (phoff <= 0 || phoff + (long) phnum * phentsize > b.capacity()) {
+			throw new IOException("No dynamic symbol table");
+		}
+		ByteBuffer table = b.duplicate();
+		table.limit((int) phoff + phnum * phentsize).position((int) phoff);
+		LEDataInputStream r = new LEDataInputStream(b.duplicate());
+		r.setIsLittleEndian(b.order() == ByteOrder.LITTLE_ENDIAN);
+		Elf.DynamicTables d;
+		try {
+			d = Elf.readDynamic(r, Elf.readProgHeaders(table.slice().order(b.order()), phnum, phentsize, t.is64bit),
+					t.is64bit);
+		} catch (UnknownFormatConversionException e) {
+			throw new IOException(e.getMessage());
+		}
+		t.symOffset = (int) d.symtab;
+		t.symSize = (int) d.syment;
+		t.symCount = (int) d.symbols;
+		t.strOffset = (int) d.strtab;
+		t.strSize = (int) d.strsz;
+		t.hashOffset = d.hash > 0 ? (int) d.hash : -1;
+		t.gnuHashOffset = d.gnuHash > 0 ? (int) d.gnuHash : -1;
+	}
+
+	private static long sectionOffset(Tables t, long header) {
+		return t.is64bit ? t.buffer.getLong((int) header + 0x18) : t.buffer.getInt((int) header + 0x10) & 0xffffffffL;
+	}
+
+	private static long sectionSize(Tables t, long header) {
+		return t.is64bit ? t.buffer.getLong((int) header + 0x20) : t.buffer.getInt((int) header + 0x14) & 0xffffffffL;
+	}
+
+	/** 检查[begin, end)的符号，返回检查的个数 */
+	private static int check(Tables t, Result result, int begin, int end) {
+		ByteBuffer b = t.buffer;
+		int checked = 0;
+		int symoffset = t.gnuHashOffset == -1 ? 0 : b.getInt(t.gnuHashOffset + 4);
+		for (int i = begin; i < end; i++) {
+			int name = b.getInt(t.symOffset + i * t.symSize);
+			if (name == 0 || name >= t.strSize) {
+				continue;
+			}
+			checked++;
+			if (t.hashOffset != -1 && !lookupHash(t, name)) {
+				result.fail(".hash: " + i + " " + string(t, name));
+			}
+			if (t.gnuHashOffset != -1 && i >= symoffset && !lookupGnuHash(t, name)) {
+				result.fail(".gnu.hash: " + i + " " + string(t, name));
+			}
+		}
+		return checked;
+	}
+
+	/** 像动态链接器一样在.hash中按名称查找符号，检查能否找到名称为name的符号 */
+	private static boolean lookupHash(Tables t, int name) {
+		ByteBuffer b = t.buffer;
+		int nbucket = b.getInt(t.hashOffset);
+		int nchain = b.getInt(t.hashOffset + 4);
+		int chains = t.hashOffset + 8 + nbucket * 4;
+		long h = 0;
+		for (int p = t.strOffset + name; b.get(p) != 0; p++) {
+			h = (h << 4) + (b.get(p) & 0xff);
+			long g = h & 0xf0000000L;
+			h ^= g >>> 24;
+			h &= ~g;
+		}
+		int steps = 0;
+		for (int i = b.getInt(t.hashOffset + 8 + (int) (h % nbucket) * 4); i != 0 && steps++ <= nchain; i = b
+				.getInt(chains + i * 4)) {
+			if (sameName(t, i, name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** 像动态链接器一样在.gnu.hash中按名称查找符号，检查能否找到名称为name的符号 */
+	private static boolean lookupGnuHash(Tables t, int name) {
+		ByteBuffer b = t.buffer;
+		int nbucket = b.getInt(t.gnuHashOffset);
+		int symoffset = b.getInt(t.gnuHashOffset + 4);
+		int bloomSize = b.getInt(t.gnuHashOffset + 8);
+		int buckets = t.gnuHashOffset + 16 + bloomSize * (t.is64bit ? 8 : 4);
+		int chains = buckets + nbucket * 4;
+		int h = 5381;
+		for (int p = t.strOffset + name; b.get(p) != 0; p++) {
+			h = h * 33 + (b.get(p) & 0xff);
+		}
+		// 先经过bloom过滤器
+		int shift = b.getInt(t.gnuHashOffset + 12);
+		long hash = h & 0xffffffffL;
+		if (t.is64bit) {
+			long word = b.getLong(t.gnuHashOffset + 16 + (int) ((hash / 64) % bloomSize) * 8);
+			long mask = (1L << (hash % 64)) | (1L << ((hash >>> shift) % 64));
+			if ((word & mask) != mask) {
+				return false;
+			}
+		} else {
+			int word = b.getInt(t.gnuHashOffset + 16 + (int) ((hash / 32) % bloomSize) * 4);
+			int mask = (1 << (hash % 32)) | (1 << ((hash >>> shift) % 32));
+			if ((word & mask) != mask) {
+				return false;
+			}
+		}
+		int i = b.getInt(buckets + (int) (hash % nbucket) * 4);
+		if (i < symoffset) {
+			return false;
+		}
+		for (; i < t.symCount; i++) {
+			int h2 = b.getInt(chains + (i - symoffset) * 4);
+			if ((h | 1) == (h2 | 1) && sameName(t, i, name)) {
+				return true;
+			}
+			if ((h2 & 1) != 0) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	/** 符号index的名称是否与.dynstr中name处的字符串相同 */
+	private static boolean sameName(Tables t, int index, int name) {
+		ByteBuffer b = t.buffer;
+		int other = b.getInt(t.symOffset + index * t.symSize);
+		if (other == name) {
+			return true;
+		}
+		if (other <= 0 || other >= t.strSize) {
+			return false;
+		}
+		int p = t.strOffset + name, q = t.strOffset + other;
+		while (b.get(p) == b.get(q)) {
+			if (b.get(p) == 0) {
+				return true;
+			}
+			p++;
+			q++;
+		}
+		return false;
+	}
+
+	private static String string(Tables t, int name) {
+		ByteBuffer b = t.buffer;
+		int end = t.strOffset + name;
+		while (b.get(end) != 0) {
+			end++;
+		}
+		byte[] data = new byte[end - t.strOffset - name];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = b.get(t.strOffset + name + i);
+		}
+		return new String(data);
+	}
+}
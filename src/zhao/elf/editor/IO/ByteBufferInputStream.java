@@ -0,0 +1,108 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * 基于ByteBuffer的输入流，数据可以是字节数组、堆外内存或者映射的文件，支持跳转
+ * @author zhaohai
+ */
+package zhao.elf.editor.IO;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer mBuffer;
+	private int mMark;
+
+	/** 读取data中position到limit的数据，位置从0开始计算，不改变data本身 */
+	public ByteBufferInputStream(ByteBuffer data) {
+		mBuffer = data.slice();
+	}
+
+	/**
+	 * 跳转到指定位置，超出范围时停在末尾
+	 */
+	public void seek(long position) {
+		mBuffer.position((int) Math.max(0, Math.min(position, mBuffer.limit())));
+	}
+
+	public long getPosition() {
+		return mBuffer.position();
+	}
+
+	public long length() {
+		return mBuffer.limit();
+	}
+
+	@Override
+	public int read() {
+		if (!mBuffer.hasRemaining()) {
+			return -1;
+		}
+		return mBuffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!mBuffer.hasRemaining()) {
+			return -1;
+		}
+		int count = Math.min(len, mBuffer.remaining());
+		mBuffer.get(b, off, count);
+		return count;
+	}
+
+	@Override
+	public long skip(long n) {
+		n = Math.max(0, Math.min(n, mBuffer.remaining()));
+		mBuffer.position(mBuffer.position() + (int) n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return mBuffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		mMark = mBuffer.position();
+	}
+
+	@Override
+	public synchronized void reset() {
+		mBuffer.position(mMark);
+	}
+}
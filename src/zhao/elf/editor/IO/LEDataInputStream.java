@@ -34,9 +34,11 @@ package zhao.elf.editor.IO;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class LEDataInputStream {
 	/** 二进制输入流 */
@@ -53,21 +55,50 @@ public class LEDataInputStream {
 
 	public long size;
 
-	public LEDataInputStream(byte[] data) throws IOException {
-		this(new ByteArrayInputStream(data));
+	/** 来自文件的数据不小于该大小时映射到内存，不复制到堆上 */
+	private static final int MAP_THRESHOLD = 64 * 1024;
+
+	/** 数据来自字节数组时为该数组的视图，用于按绝对位置读取 */
+	private final ByteBuffer mMemory;
+
+	public LEDataInputStream(byte[] data) {
+		this(ByteBuffer.wrap(data));
 	}
 
 	/**
-	 * 构造函数
+	 * 构造函数，数据为data中position到limit的部分，可以是映射的文件，按绝对位置读取时直接共享，不复制
+	 */
+	public LEDataInputStream(ByteBuffer data) {
+		this.is = new ByteBufferInputStream(data);
+		this.dis = new DataInputStream(is);
+		work = new byte[8];
+		this.size = data.remaining();
+		mMemory = data.slice();
+	}
+
+	/**
+	 * 构造函数，数据大小由available()得到，只适用于ByteArrayInputStream这类能给出准确剩余大小的输入流
 	 * 
 	 * @throws IOException
 	 */
 	public LEDataInputStream(InputStream in) throws IOException {
+		this(in, in instanceof RandomAccessInputStream ? ((RandomAccessInputStream) in).length() : in.available());
+	}
+
+	/**
+	 * 构造函数
+	 * 
+	 * @param size
+	 *            数据的实际大小
+	 * @throws IOException
+	 */
+	public LEDataInputStream(InputStream in, long size) throws IOException {
 		// 获取输入流
 		this.is = in;
 		this.dis = new DataInputStream(is);
 		work = new byte[8];
-		size = in.available();
+		this.size = size;
+		mMemory = null;
 	}
 
 	/**
@@ -146,12 +177,41 @@ public class LEDataInputStream {
 	 */
 	public int[] readIntArray(int length) throws IOException {
 		int[] array = new int[length];
-		for (int i = 0; i < length; i++) {
-			array[i] = readInt();
-		}
+		readBulk(length * 4).asIntBuffer().get(array);
+		return array;
+	}
+
+	/**
+	 * 读取64位long数据，并储存到数组中，直到数组填满
+	 * 
+	 * @throws IOException
+	 */
+	public long[] readLongArray(int length) throws IOException {
+		long[] array = new long[length];
+		readBulk(length * 8).asLongBuffer().get(array);
 		return array;
 	}
 
+	/**
+	 * 读取16位short数据，并储存到数组中，直到数组填满
+	 * 
+	 * @throws IOException
+	 */
+	public short[] readShortArray(int length) throws IOException {
+		short[] array = new short[length];
+		readBulk(length * 2).asShortBuffer().get(array);
+		return array;
+	}
+
+	/**
+	 * 一次读取size个字节，返回按当前字节序解码的ByteBuffer
+	 */
+	private ByteBuffer readBulk(int size) throws IOException {
+		byte[] data = new byte[size];
+		dis.readFully(data, 0, size);
+		return ByteBuffer.wrap(data).order(mIsLittleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+	}
+
 	/***
 	 * 读取一个64位长整型数据
 	 */
@@ -213,30 +273,136 @@ public class LEDataInputStream {
 	/**
 	 * 跳转
 	 * 
-	 * @throws IllegalArgumentException
-	 * @throws IllegalAccessException
 	 * @throws IOException
-	 * @throws NoSuchFieldException
 	 */
 	public void seek(long position) throws IOException {
-		if (is instanceof ByteArrayInputStream) {
-			Class<ByteArrayInputStream> clazz = ByteArrayInputStream.class;
-			Field field;
-			try {
-				field = clazz.getDeclaredField("pos");
-				field.setAccessible(true);
-				field.setInt(is, (int) position);
-			} catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException e) {
-				e.printStackTrace();
-				throw new IOException("Unsupported");
-			}
+		if (is instanceof ByteBufferInputStream) {
+			((ByteBufferInputStream) is).seek(position);
+		} else if (is instanceof ByteArrayInputStream) {
+			// 没有调用过mark()时reset()回到开头
+			is.reset();
+			is.skip(position);
+		} else if (is instanceof RandomAccessInputStream) {
+			((RandomAccessInputStream) is).seek(position);
 		} else {
 			throw new IOException("Unsupported");
 		}
 	}
 
+	/**
+	 * 数据是否整个位于内存中
+	 */
+	public boolean isInMemory() {
+		return mMemory != null;
+	}
+
+	/**
+	 * 获取一段数据的只读ByteBuffer视图，数据来自字节数组时直接共享，来自文件时较大的数据映射到内存，都不复制到堆上
+	 * 
+	 * @throws IOException
+	 */
+	public ByteBuffer slice(long offset, int length) throws IOException {
+		ByteBuffer buffer;
+		if (mMemory != null) {
+			checkRange(offset, length);
+			ByteBuffer view = mMemory.duplicate();
+			view.limit((int) offset + length).position((int) offset);
+			buffer = view.slice().asReadOnlyBuffer();
+		} else if (length >= MAP_THRESHOLD && is instanceof RandomAccessInputStream) {
+			checkRange(offset, length);
+			buffer = ((RandomAccessInputStream) is).map(offset, length);
+		} else {
+			byte[] data = new byte[length];
+			readBytesAt(offset, data, 0, length);
+			buffer = ByteBuffer.wrap(data);
+		}
+		return buffer.order(order());
+	}
+
 	public void setIsLittleEndian(boolean isLittleEndian) {
 		mIsLittleEndian = isLittleEndian;
+		if (mMemory != null) {
+			mMemory.order(order());
+		}
+	}
+
+	private ByteOrder order() {
+		return mIsLittleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	}
+
+	private void checkRange(long position, int length) throws EOFException {
+		if (position < 0 || length < 0 || position + length > size) {
+			throw new EOFException("Read " + length + " bytes at " + position + ", size " + size);
+		}
+	}
+
+	/**
+	 * 从绝对位置读取len个字节，不使用也不改变当前读取位置，多个线程可以同时调用
+	 * 
+	 * @throws IOException
+	 */
+	public void readBytesAt(long position, byte[] b, int off, int len) throws IOException {
+		checkRange(position, len);
+		if (mMemory != null) {
+			ByteBuffer view = mMemory.duplicate();
+			view.position((int) position);
+			view.get(b, off, len);
+		} else if (is instanceof RandomAccessInputStream) {
+			((RandomAccessInputStream) is).readFullyAt(position, b, off, len);
+		} else {
+			throw new IOException("Unsupported");
+		}
+	}
+
+	/**
+	 * 从绝对位置读取一段数据，返回按当前字节序解码的ByteBuffer
+	 */
+	private ByteBuffer bufferAt(long position, int length) throws IOException {
+		if (mMemory != null) {
+			checkRange(position, length);
+			return mMemory;
+		}
+		byte[] data = new byte[length];
+		readBytesAt(position, data, 0, length);
+		return ByteBuffer.wrap(data).order(order());
+	}
+
+	/** 从绝对位置读取一个字节 */
+	public byte readByteAt(long position) throws IOException {
+		ByteBuffer b = bufferAt(position, 1);
+		return b == mMemory ? b.get((int) position) : b.get(0);
+	}
+
+	/** 从绝对位置读取一个16位的short型数据 */
+	public short readShortAt(long position) throws IOException {
+		ByteBuffer b = bufferAt(position, 2);
+		return b == mMemory ? b.getShort((int) position) : b.getShort(0);
+	}
+
+	/** 从绝对位置读取一个32位的int型数据 */
+	public int readIntAt(long position) throws IOException {
+		ByteBuffer b = bufferAt(position, 4);
+		return b == mMemory ? b.getInt((int) position) : b.getInt(0);
+	}
+
+	/** 从绝对位置读取一个64位的long型数据 */
+	public long readLongAt(long position) throws IOException {
+		ByteBuffer b = bufferAt(position, 8);
+		return b == mMemory ? b.getLong((int) position) : b.getLong(0);
+	}
+
+	/** 从绝对位置读取length个32位int数据 */
+	public int[] readIntArrayAt(long position, int length) throws IOException {
+		int[] array = new int[length];
+		slice(position, length * 4).asIntBuffer().get(array);
+		return array;
+	}
+
+	/** 从绝对位置读取length个64位long数据 */
+	public long[] readLongArrayAt(long position, int length) throws IOException {
+		long[] array = new long[length];
+		slice(position, length * 8).asLongBuffer().get(array);
+		return array;
 	}
 
 	/**
@@ -33,18 +33,66 @@
 
 package zhao.elf.editor.IO;
 
-import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class LEDataOutputStream {
 
-	/** 二进制文件输出流 */
-	private DataOutputStream dos;
+	/** 缓冲区大小 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** 关闭后归还的缓冲区，供下一个输出流重复使用 */
+	private static final ConcurrentLinkedQueue<ByteBuffer> sBufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/** 用来填充的空字节 */
+	private static final byte[] ZEROS = new byte[4096];
+
+	/** 输出通道 */
+	private final WritableByteChannel channel;
+
+	/** 缓冲区 */
+	private ByteBuffer buffer;
+
+	/** 已写入的字节数 */
+	private long written;
 
 	/** 构造函数 */
 	public LEDataOutputStream(OutputStream out) {
-		dos = new DataOutputStream(out);
+		this(out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : Channels.newChannel(out));
+	}
+
+	/** 构造函数 */
+	public LEDataOutputStream(WritableByteChannel channel) {
+		this.channel = channel;
+		ByteBuffer pooled = sBufferPool.poll();
+		buffer = pooled != null ? pooled : ByteBuffer.allocateDirect(BUFFER_SIZE);
+		buffer.clear();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/** 设置字节序，默认为小端 */
+	public void setIsLittleEndian(boolean isLittleEndian) {
+		buffer.order(isLittleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * 将缓冲区中的数据写入通道
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
 	}
 
 	/**
@@ -53,8 +101,28 @@ public class LEDataOutputStream {
 	 * @throws IOException
 	 */
 	public void close() throws IOException {
-		dos.flush();
-		dos.close();
+		try {
+			finish();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * 写出缓冲区中的数据并归还缓冲区，不关闭通道，之后不能再写入，重复调用时不做任何事
+	 * 
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (buffer == null) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			sBufferPool.offer(buffer);
+			buffer = null;
+		}
 	}
 
 	/**
@@ -63,7 +131,15 @@ public class LEDataOutputStream {
 	 * @return
 	 */
 	public int size() {
-		return dos.size();
+		return (int) written;
+	}
+
+	/** 保证缓冲区中至少有n个字节的空间 */
+	private void ensure(int n) throws IOException {
+		if (buffer.remaining() < n) {
+			flush();
+		}
+		written += n;
 	}
 
 	/**
@@ -73,7 +149,8 @@ public class LEDataOutputStream {
 	 * @throws IOException
 	 */
 	public void writeByte(byte b) throws IOException {
-		dos.writeByte(b);
+		ensure(1);
+		buffer.put(b);
 	}
 
 	/**
@@ -83,8 +160,11 @@ public class LEDataOutputStream {
 	 * @throws IOException
 	 */
 	public void writeBytes(int length) throws IOException {
-		for (int i = 0; i < length; i++)
-			dos.writeByte(0);
+		while (length > 0) {
+			int count = Math.min(length, ZEROS.length);
+			writeFully(ZEROS, 0, count);
+			length -= count;
+		}
 	}
 
 	/**
@@ -106,7 +186,7 @@ public class LEDataOutputStream {
 	 * @throws IOException
 	 */
 	public void writeFully(byte[] b) throws IOException {
-		dos.write(b, 0, b.length);
+		writeFully(b, 0, b.length);
 	}
 
 	/**
@@ -118,7 +198,59 @@ public class LEDataOutputStream {
 	 * @throws IOException
 	 */
 	public void writeFully(byte[] buffer, int offset, int count) throws IOException {
-		dos.write(buffer, offset, count);
+		write(ByteBuffer.wrap(buffer, offset, count));
+	}
+
+	/**
+	 * 写入ByteBuffer中剩余的数据，数据较多时不经过缓冲区直接写入通道
+	 * 
+	 * @param src
+	 * @throws IOException
+	 */
+	public void write(ByteBuffer src) throws IOException {
+		int count = src.remaining();
+		written += count;
+		if (count <= buffer.remaining()) {
+			buffer.put(src);
+			return;
+		}
+		flush();
+		if (count < buffer.capacity()) {
+			buffer.put(src);
+		} else {
+			while (src.hasRemaining()) {
+				channel.write(src);
+			}
+		}
+	}
+
+	/**
+	 * 按顺序写入多个ByteBuffer中剩余的数据，通道支持时用聚集写入，几次系统调用就能写完
+	 * 
+	 * @param srcs
+	 * @return 写入的字节数
+	 * @throws IOException
+	 */
+	public long write(ByteBuffer[] srcs) throws IOException {
+		flush();
+		long count = 0;
+		for (ByteBuffer src : srcs) {
+			count += src.remaining();
+		}
+		written += count;
+		if (channel instanceof GatheringByteChannel) {
+			GatheringByteChannel gathering = (GatheringByteChannel) channel;
+			for (long remaining = count; remaining > 0;) {
+				remaining -= gathering.write(srcs);
+			}
+		} else {
+			for (ByteBuffer src : srcs) {
+				while (src.hasRemaining()) {
+					channel.write(src);
+				}
+			}
+		}
+		return count;
 	}
 
 	/**
@@ -128,10 +260,8 @@ public class LEDataOutputStream {
 	 * @throws IOException
 	 */
 	public void writeInt(int i) throws IOException {
-		dos.writeByte(i & 0xff);
-		dos.writeByte((i >> 8) & 0xff);
-		dos.writeByte((i >> 16) & 0xff);
-		dos.writeByte((i >> 24) & 0xff);
+		ensure(4);
+		buffer.putInt(i);
 	}
 
 	/**
@@ -145,7 +275,7 @@ public class LEDataOutputStream {
 	}
 
 	/**
-	 * 写入32位的int型数组
+	 * 写入32位的int型数组，通过IntBuffer视图批量写入缓冲区
 	 * 
 	 * @param buf
 	 * @param s
@@ -153,8 +283,16 @@ public class LEDataOutputStream {
 	 * @throws IOException
 	 */
 	private void writeIntArray(int[] buf, int s, int end) throws IOException {
-		for (; s < end; s++)
-			writeInt(buf[s]);
+		while (s < end) {
+			if (buffer.remaining() < 4) {
+				flush();
+			}
+			int count = Math.min(end - s, buffer.remaining() / 4);
+			buffer.asIntBuffer().put(buf, s, count);
+			buffer.position(buffer.position() + count * 4);
+			written += count * 4;
+			s += count;
+		}
 	}
 
 	/**
@@ -164,14 +302,8 @@ public class LEDataOutputStream {
 	 * @throws IOException
 	 */
 	public void writeLong(long l) throws IOException {
-		dos.writeByte((int) (l & 0xff));
-		dos.writeByte((int) ((l >> 8) & 0xff));
-		dos.writeByte((int) ((l >> 16) & 0xff));
-		dos.writeByte((int) ((l >> 24) & 0xff));
-		dos.writeByte((int) ((l >> 32) & 0xff));
-		dos.writeByte((int) ((l >> 40) & 0xff));
-		dos.writeByte((int) ((l >> 48) & 0xff));
-		dos.writeByte((int) ((l >> 56) & 0xff));
+		ensure(8);
+		buffer.putLong(l);
 	}
 
 	/**
@@ -192,7 +324,7 @@ public class LEDataOutputStream {
 
 	/** 写入一个16位的short型数据 */
 	public void writeShort(short s) throws IOException {
-		dos.writeByte(s & 0xff);
-		dos.writeByte((s >>> 8) & 0xff);
+		ensure(2);
+		buffer.putShort(s);
 	}
 }
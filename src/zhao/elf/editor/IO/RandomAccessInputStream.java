@@ -0,0 +1,180 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * 基于RandomAccessFile的输入流，只在内存中保留一个固定大小的读缓冲窗口，支持跳转
+ * 用于文件太大、无法整个读入内存的情况
+ * @author zhaohai
+ */
+package zhao.elf.editor.IO;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class RandomAccessInputStream extends InputStream {
+	/** 默认窗口大小 */
+	public static final int DEFAULT_WINDOW = 64 * 1024;
+
+	private final RandomAccessFile mFile;
+	private final long mLength;
+	private final byte[] mWindow;
+	/** 窗口对应的文件偏移 */
+	private long mWindowStart;
+	/** 窗口中有效数据的长度 */
+	private int mWindowLength;
+	/** 当前读取位置 */
+	private long mPosition;
+	private long mMark;
+
+	public RandomAccessInputStream(File file) throws IOException {
+		this(file, DEFAULT_WINDOW);
+	}
+
+	public RandomAccessInputStream(File file, int window) throws IOException {
+		mFile = new RandomAccessFile(file, "r");
+		mLength = mFile.length();
+		mWindow = new byte[window];
+	}
+
+	/**
+	 * 跳转到指定位置，位置仍在窗口内时不需要重新读取
+	 */
+	public void seek(long position) {
+		mPosition = position;
+	}
+
+	public long getPosition() {
+		return mPosition;
+	}
+
+	public long length() {
+		return mLength;
+	}
+
+	/** 保证当前位置在窗口内 */
+	private boolean fill() throws IOException {
+		if (mPosition >= mWindowStart && mPosition < mWindowStart + mWindowLength) {
+			return true;
+		}
+		if (mPosition >= mLength) {
+			return false;
+		}
+		mWindowStart = mPosition;
+		mWindowLength = (int) Math.min(mWindow.length, mLength - mPosition);
+		mFile.seek(mWindowStart);
+		mFile.readFully(mWindow, 0, mWindowLength);
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return mWindow[(int) (mPosition++ - mWindowStart)] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (mPosition >= mLength) {
+			return -1;
+		}
+		if (len >= mWindow.length) {
+			// 大块读取不经过窗口
+			mFile.seek(mPosition);
+			int count = mFile.read(b, off, (int) Math.min(len, mLength - mPosition));
+			mPosition += count;
+			return count;
+		}
+		fill();
+		int count = Math.min(len, (int) (mWindowStart + mWindowLength - mPosition));
+		System.arraycopy(mWindow, (int) (mPosition - mWindowStart), b, off, count);
+		mPosition += count;
+		return count;
+	}
+
+	/**
+	 * 从绝对位置读取len个字节，不经过窗口，也不改变当前读取位置，多个线程可以同时调用
+	 */
+	public void readFullyAt(long position, byte[] b, int off, int len) throws IOException {
+		FileChannel channel = mFile.getChannel();
+		ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, position + buffer.position() - off);
+			if (count < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * 把文件的一段映射到内存，返回只读视图，不占用堆内存，关闭流之后仍然可以使用
+	 */
+	public ByteBuffer map(long position, int length) throws IOException {
+		return mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, position, length);
+	}
+
+	@Override
+	public long skip(long n) {
+		n = Math.max(0, Math.min(n, mLength - mPosition));
+		mPosition += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, mLength - mPosition);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		mMark = mPosition;
+	}
+
+	@Override
+	public synchronized void reset() {
+		mPosition = mMark;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mFile.close();
+	}
+}
@@ -33,16 +33,12 @@
  * */
 package zhao.elf.editor;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -65,6 +61,8 @@ import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.TextWatcher;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
@@ -73,6 +71,7 @@ import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
+import zhao.elf.editor.Elf.ItemHelper;
 
 public class MainActivity extends Activity {
 
@@ -91,11 +90,15 @@ public class MainActivity extends Activity {
 			if (RESOURCES != null) {
 				////////////////////////////////////////////////////////////////
 				if (checkChanged()) {
-					// 整理RoData
-					if (textCategory.getText().toString().equals("dynstr")) {
-						elfParser.sortStrData(txtOriginal, txtTranslated, elfParser.ro_items);
-					} else { // 整理Dynstr
-						elfParser.sortStrData(txtOriginal, txtTranslated, elfParser.dy_items);
+					try {
+						// 整理RoData
+						if (textCategory.getText().toString().equals("dynstr")) {
+							elfParser.sortStrData(txtOriginal, txtTranslated, elfParser.ro_items);
+						} else { // 整理Dynstr
+							elfParser.sortStrData(txtOriginal, txtTranslated, elfParser.dy_items);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
 					}
 					isChanged = true;
 				}
@@ -115,7 +118,7 @@ public class MainActivity extends Activity {
 						txtOriginal.add(VALUE);
 					}
 				}
-				initList();
+				initList(itemsOf(params[0]));
 			}
 			return null;
 		}
@@ -144,7 +147,7 @@ public class MainActivity extends Activity {
 	/**
 	 * @author zhaohai 一个用来解析ARSC的线程
 	 */
-	class ParseTask extends AsyncTask<InputStream, Integer, String> {
+	class ParseTask extends AsyncTask<File, Integer, String> {
 		// 进度条
 		private ProgressDialog dlg;
 		// 资源回调接口
@@ -152,7 +155,7 @@ public class MainActivity extends Activity {
 
 		// 执行耗时任务
 		@Override
-		protected String doInBackground(InputStream... params) {
+		protected String doInBackground(File... params) {
 
 			try {
 				parseELF(callback, params[0]);
@@ -223,7 +226,7 @@ public class MainActivity extends Activity {
 	/**
 	 * @author zhaohai 一个用来保存资源文件的线程
 	 */
-	class SaveFileTask extends AsyncTask<String, String, String> {
+	class SaveFileTask extends AsyncTask<String, Integer, String> {
 		// 进度条
 		private ProgressDialog dlg;
 
@@ -231,7 +234,19 @@ public class MainActivity extends Activity {
 		@Override
 		protected String doInBackground(String... params) {
 			try {
-				writeELFString((String) params[0]);
+				writeELFString((String) params[0], new ProgressCallBack() {
+					private int percent = -1;
+
+					@Override
+					public void progress(long written, long total) {
+						// 百分比变化时才更新界面
+						int value = total <= 0 ? 100 : (int) Math.min(100, written * 100 / total);
+						if (value != percent) {
+							percent = value;
+							publishProgress(value);
+						}
+					}
+				});
 			} catch (IOException e) {
 				e.printStackTrace();
 				return e.toString();
@@ -262,12 +277,21 @@ public class MainActivity extends Activity {
 			dlg = new ProgressDialog(MainActivity.this);
 			// 设置进度条标题
 			dlg.setTitle(R.string.saving);
+			// 按写入的字节数显示进度
+			dlg.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+			dlg.setMax(100);
 			// 设置按进度条外部进度条不消失
 			dlg.setCancelable(false);
 			// 显示进度条
 			dlg.show();
 		}
 
+		// 更新ui界面
+		@Override
+		protected void onProgressUpdate(Integer... values) {
+			dlg.setProgress(values[0]);
+		}
+
 	}
 
 	// 数据适配器
@@ -391,14 +415,17 @@ public class MainActivity extends Activity {
 	 * @throws IOException
 	 */
 	public static byte[] InputStream2ByteArray(InputStream is) throws IOException {
-		int count;
-		byte[] buffer = new byte[2048];
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		while ((count = is.read(buffer)) != -1) {
-			bos.write(buffer, 0, count);
-		}
-		bos.close();
-		return bos.toByteArray();
+		return Elf.readFully(is, -1);
+	}
+
+	/**
+	 * 读取大小已知的输入流，只分配一次内存
+	 * 
+	 * @param length
+	 *            数据大小，如文件长度或content URI的SIZE列
+	 */
+	public static byte[] InputStream2ByteArray(InputStream is, long length) throws IOException {
+		return Elf.readFully(is, length);
 	}
 
 	// 显示信息的方法
@@ -494,14 +521,68 @@ public class MainActivity extends Activity {
 		return false;
 	}
 
-	/** 初始化容器 **/
-	private void initList() {
-		for (int i = 0; i < txtOriginal.size(); i++) {
-			// 向储存修改后的字符串的列表中添加空成员
-			txtTranslated.add("");
+	/** 初始化容器，已修改过的字符串显示修改后的值 **/
+	private void initList(List<ItemHelper> items) {
+		Map<String, ItemHelper> edited = new HashMap<String, ItemHelper>();
+		if (items != null) {
+			for (ItemHelper item : items) {
+				if (item.newVal != null && !edited.containsKey(item.oldval)) {
+					edited.put(item.oldval, item);
+				}
+			}
+		}
+		for (String original : txtOriginal) {
+			ItemHelper item = edited.get(original);
+			// 向储存修改后的字符串的列表中添加成员，未修改的为空
+			txtTranslated.add(item == null ? "" : item.newVal);
 		}
 	}
 
+	/** 获取资源种类对应的字符串列表 **/
+	private List<ItemHelper> itemsOf(String category) {
+		return category.equals("rodata") ? elfParser.ro_items : elfParser.dy_items;
+	}
+
+	/** 撤销或重做一次修改 **/
+	private void undoOrRedo(boolean undo) {
+		EditJournal journal = elfParser == null ? null : elfParser.getJournal();
+		if (journal == null) {
+			return;
+		}
+		List<ItemHelper> items = itemsOf(textCategory.getText().toString());
+		try {
+			// 先记录当前界面上的修改
+			elfParser.sortStrData(txtOriginal, txtTranslated, items);
+			if (undo ? journal.undo() : journal.redo()) {
+				txtTranslated.clear();
+				initList(items);
+				mAdapter.notifyDataSetChanged();
+			}
+		} catch (IOException e) {
+			showMessage(this, e.toString()).show();
+		}
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		menu.add(Menu.NONE, R.string.undo, Menu.NONE, R.string.undo);
+		menu.add(Menu.NONE, R.string.redo, Menu.NONE, R.string.redo);
+		return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+		case R.string.undo:
+			undoOrRedo(true);
+			return true;
+		case R.string.redo:
+			undoOrRedo(false);
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
 	/** 根据返回选择的文件，来进行操作 **/
 	@Override
 	public void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -509,11 +590,7 @@ public class MainActivity extends Activity {
 		if (resultCode == Activity.RESULT_OK) {
 			Uri uri = data.getData();
 			fileSrc = uri.getPath();
-			try {
-				open(new FileInputStream(fileSrc));
-			} catch (IOException e) {
-				showMessage(this, e.toString()).show();
-			}
+			open(new File(fileSrc));
 		}
 		super.onActivityResult(requestCode, resultCode, data);
 	}
@@ -545,15 +622,17 @@ public class MainActivity extends Activity {
 		mAdapter = new stringListAdapter(this);
 		// 为列表控件设置数据适配器
 		stringListView.setAdapter(mAdapter);
+		// 解析和保存的各阶段输出到系统跟踪
+		Elf.setDefaultListener(new TracePhaseListener());
 		this.OpenSystemFile();
 	}
 
-	private void open(InputStream resInputStream) {
+	private void open(File file) {
 		// 初始化一个线程用来解析资源文件
-		AsyncTask<InputStream, Integer, String> task = new ParseTask();
+		AsyncTask<File, Integer, String> task = new ParseTask();
 		try {
 			// 开启该线程
-			task.execute(resInputStream);
+			task.execute(file);
 		} catch (OutOfMemoryError e) {
 			showMessage(this, getString(R.string.out_of_memory)).show();
 		}
@@ -580,12 +659,16 @@ public class MainActivity extends Activity {
 	 * 
 	 * @param result
 	 *            用来存放结果
-	 * @param is
-	 *            文件输入流
+	 * @param file
+	 *            文件，同目录下的解析缓存可以加快再次打开
 	 **/
-	public void parseELF(ResourceCallBack callBack, InputStream is)
+	public void parseELF(ResourceCallBack callBack, File file)
 			throws UnknownFormatConversionException, IOException {
-		elfParser = new Elf(new ByteArrayInputStream(InputStream2ByteArray(is)), callBack);
+		elfParser = new Elf(file, callBack);
+		// 恢复上次未保存的修改
+		if (EditJournal.open(file, elfParser).canUndo()) {
+			isChanged = true;
+		}
 	}
 
 	/** 显示保存文件的对话框 **/
@@ -612,15 +695,42 @@ public class MainActivity extends Activity {
 
 	// 保存ELF字符串
 	@SuppressLint("DefaultLocale")
-	public void writeELFString(String output) throws IOException {
+	public void writeELFString(String output, ProgressCallBack callBack) throws IOException {
 		// 整理RoData
 		if (textCategory.getText().toString().equals("rodata")) {
 			elfParser.sortStrData(txtOriginal, txtTranslated, elfParser.ro_items);
 		} else { // 整理Dynstr
 			elfParser.sortStrData(txtOriginal, txtTranslated, elfParser.dy_items);
 		}
-		OutputStream fos = new FileOutputStream(output);
-		elfParser.writeELF(fos);
-		fos.close();
+		File file = new File(output);
+		File bak = new File(output + ".bak");
+		// 先写到临时文件，检查通过后才替换输出文件
+		File tmp = new File(output + ".tmp");
+		boolean ok = false;
+		try {
+			// 没有任何修改时不写出文件，由finally把备份改回原来的名字
+			if (!elfParser.saveTo(tmp, callBack)) {
+				return;
+			}
+			// 检查修改后的符号都能被找到
+			ElfVerifier.Result result = ElfVerifier.verify(tmp);
+			if (!result.isOk()) {
+				throw new IOException(result.toString());
+			}
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Can't rename " + tmp + " to " + file);
+			}
+			ok = true;
+		} finally {
+			// 没有写出或失败时删除临时文件，恢复原文件，保留日志
+			if (!ok) {
+				tmp.delete();
+				bak.renameTo(file);
+			}
+		}
+		// 修改已经写入文件，不再需要日志
+		if (elfParser.getJournal() != null) {
+			elfParser.getJournal().clear();
+		}
 	}
 }
@@ -0,0 +1,119 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * 汇总多个文件各阶段的耗时，用于批量处理后查看时间花在哪里
+ * 耗时按2的幂分桶(微秒)，可以估计分位数
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+public class PhaseHistogram implements PhaseListener {
+	private static final int BUCKETS = 40;
+
+	/** 一个阶段的统计 */
+	public static class Stats {
+		public long count;
+		public long totalNanos;
+		public long maxNanos;
+		public long bytes;
+		public long allocated;
+		/** buckets[i]: 耗时在[2^(i-1), 2^i)微秒之间的次数 */
+		public final long[] buckets = new long[BUCKETS];
+
+		void add(long nanos, long bytes, long allocated) {
+			count++;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+			this.bytes += bytes;
+			this.allocated += allocated;
+			long micros = nanos / 1000;
+			int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+			buckets[Math.min(bucket, BUCKETS - 1)]++;
+		}
+
+		/**
+		 * 估计分位数
+		 *
+		 * @return 所在桶的上界，纳秒
+		 */
+		public long percentile(double p) {
+			long target = (long) Math.ceil(count * p);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if (seen >= target && seen > 0) {
+					return Math.min(maxNanos, (1L << i) * 1000);
+				}
+			}
+			return maxNanos;
+		}
+	}
+
+	private final Map<Phase, Stats> mStats = new EnumMap<Phase, Stats>(Phase.class);
+
+	@Override
+	public void onPhaseStart(Elf elf, Phase phase) {
+	}
+
+	@Override
+	public synchronized void onPhase(Elf elf, Phase phase, long nanos, long bytes, long allocated) {
+		Stats stats = mStats.get(phase);
+		if (stats == null) {
+			stats = new Stats();
+			mStats.put(phase, stats);
+		}
+		stats.add(nanos, bytes, allocated);
+	}
+
+	/** 获取某个阶段的统计，没有记录时返回null */
+	public synchronized Stats get(Phase phase) {
+		return mStats.get(phase);
+	}
+
+	public synchronized void clear() {
+		mStats.clear();
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-14s %8s %10s %10s %10s %10s %10s %10s", "phase", "count", "total(ms)", "p50(ms)",
+				"p90(ms)", "max(ms)", "MB/s", "alloc(KB)"));
+		for (Map.Entry<Phase, Stats> entry : mStats.entrySet()) {
+			Stats s = entry.getValue();
+			double seconds = s.totalNanos / 1e9;
+			sb.append('\n').append(String.format("%-14s %8d %10.2f %10.2f %10.2f %10.2f %10.1f %10d", entry.getKey(),
+					s.count, s.totalNanos / 1e6, s.percentile(0.5) / 1e6, s.percentile(0.9) / 1e6, s.maxNanos / 1e6,
+					seconds > 0 ? s.bytes / seconds / (1 << 20) : 0.0, s.allocated / 1024));
+		}
+		return sb.toString();
+	}
+}
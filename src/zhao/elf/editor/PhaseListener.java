@@ -0,0 +1,81 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * 解析和保存各阶段的耗时统计
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+public interface PhaseListener {
+
+	/** 解析和保存的各个阶段 */
+	enum Phase {
+		PARSE, // 整个解析过程，包含以下各个解析阶段
+		HEADER, // 文件头、程序头部表、节区头部表
+		CACHE, // 从缓存恢复字符串
+		HASH, // 读取.hash
+		DYNSYM, // 解码.dynsym
+		DYNSTR, // 切分.dynstr
+		RODATA, // 读取并切分.rodata
+		SYMBOLS, // 查找.dynstr中字符串对应的符号索引
+		WRITE, // 整个保存过程，包含以下各个保存阶段
+		WRITE_DYNHASH, // 写.hash和.gnu.hash
+		WRITE_DYNSTR, // 写.dynstr
+		WRITE_RODATA, // 写.rodata
+		WRITE_EXTRA // 按顺序写出未修改的数据和重新生成的段
+	}
+
+	/** 什么都不做的默认实现 */
+	PhaseListener NONE = new PhaseListener() {
+		@Override
+		public void onPhaseStart(Elf elf, Phase phase) {
+		}
+
+		@Override
+		public void onPhase(Elf elf, Phase phase, long nanos, long bytes, long allocated) {
+		}
+	};
+
+	/**
+	 * 一个阶段开始，同一线程上的阶段按嵌套顺序开始和结束
+	 * 并行解析时HASH、DYNSYM、DYNSTR和RODATA在不同的线程上报告，保存时WRITE_EXTRA在写入线程上报告，实现需要是线程安全的
+	 */
+	void onPhaseStart(Elf elf, Phase phase);
+
+	/**
+	 * 一个阶段结束
+	 *
+	 * @param nanos
+	 *            耗时，纳秒
+	 * @param bytes
+	 *            读取或写入的字节数
+	 * @param allocated
+	 *            堆内存增长的字节数，根据Runtime的已用内存估算，期间发生GC时偏小
+	 */
+	void onPhase(Elf elf, Phase phase, long nanos, long bytes, long allocated);
+}
@@ -0,0 +1,190 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * 分块切分.rodata中以'\0'结尾的字符串，各块可以并行扫描，跨越块边界的字符串在合并结果时拼接
+ * 可以按最小长度和可打印字符比例过滤二进制数据，不为其建立条目
+ * 不过滤时结果与逐字节切分整个段相同
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import zhao.elf.editor.Elf.ItemHelper;
+
+public class RoDataScanner {
+	/** 并行扫描时每块的最小字节数 */
+	private static final int MIN_CHUNK = 64 * 1024;
+
+	private final ByteBuffer mTable; // 整个段的只读视图
+	private final int mSize;
+	private final int mMinLength;
+	private final float mPrintableRatio;
+
+	/** 一块的扫描结果 */
+	private static class Chunk {
+		final List<ItemHelper> items = new ArrayList<ItemHelper>();
+		int headEnd = -1; // 从上一块延续过来的字符串在本块中的结束偏移，没有时为-1
+		int tailStart = -1; // 本块末尾未结束的字符串的起始偏移，没有时为-1
+	}
+
+	RoDataScanner(ByteBuffer table, int minLength, float printableRatio) {
+		mTable = table;
+		mSize = table.capacity();
+		mMinLength = minLength;
+		mPrintableRatio = printableRatio;
+	}
+
+	/**
+	 * 扫描整个段
+	 * 
+	 * @param threads
+	 *            并行扫描的线程数
+	 */
+	List<ItemHelper> scan(int threads) throws IOException {
+		final int chunkSize = Math.max(MIN_CHUNK, (mSize + threads - 1) / Math.max(1, threads));
+		final Chunk[] chunks = new Chunk[mSize == 0 ? 0 : (mSize + chunkSize - 1) / chunkSize];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks.length);
+		for (int i = 0; i < chunks.length; i++) {
+			final int index = i;
+			final int from = i * chunkSize;
+			final int to = Math.min(mSize, from + chunkSize);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					chunks[index] = scanChunk(mTable.duplicate(), from, to);
+					return null;
+				}
+			});
+		}
+		Elf.invokeAll(tasks, threads);
+
+		// 按顺序合并各块，拼接跨越边界的字符串
+		List<ItemHelper> items = new ArrayList<ItemHelper>();
+		int open = -1; // 尚未结束的字符串的起始偏移
+		for (Chunk chunk : chunks) {
+			if (open != -1 && chunk.headEnd != -1) {
+				add(items, mTable, open, chunk.headEnd - open);
+				open = -1;
+			}
+			items.addAll(chunk.items);
+			if (chunk.tailStart != -1) {
+				open = chunk.tailStart;
+			}
+		}
+		if (open != -1) {
+			// 段末尾没有'\0'时与原来的切分方式一致，丢弃最后一个字节
+			add(items, mTable, open, mSize - open - 1);
+		} else if (mSize > 0 && mTable.get(mSize - 1) == 0 && (mSize == 1 || mTable.get(mSize - 2) == 0)) {
+			// 段末尾有多余的'\0'时原来的切分方式会留下一个空字符串
+			add(items, mTable, mSize - 1, 0);
+		}
+		return items;
+	}
+
+	/** 扫描[from, to) */
+	private Chunk scanChunk(ByteBuffer table, int from, int to) {
+		Chunk chunk = new Chunk();
+		final int CONTINUED = -2;
+		// 当前字符串的起始偏移，-1表示正在跳过'\0'
+		int start = from > 0 && table.get(from - 1) != 0 ? CONTINUED : -1;
+		for (int i = from; i < to; i++) {
+			if (table.get(i) != 0) {
+				if (start == -1) {
+					start = i;
+				}
+			} else {
+				if (start == CONTINUED) {
+					chunk.headEnd = i;
+				} else if (start != -1) {
+					add(chunk.items, table, start, i - start);
+				}
+				start = -1;
+			}
+		}
+		if (start >= 0) {
+			chunk.tailStart = start;
+		}
+		return chunk;
+	}
+
+	private void add(List<ItemHelper> items, ByteBuffer table, int offset, int length) {
+		if (accept(table, offset, length)) {
+			ItemHelper item = new ItemHelper();
+			item.oldval = Elf.stringAt(table, offset, length);
+			item.offset = offset;
+			item.length = length;
+			items.add(item);
+		}
+	}
+
+	/** 是否满足最小长度和可打印字符比例 */
+	private boolean accept(ByteBuffer table, int off, int len) {
+		if (len < mMinLength) {
+			return false;
+		}
+		if (mPrintableRatio <= 0 || len == 0) {
+			return true;
+		}
+		int printable = 0;
+		final int end = off + len;
+		for (int i = off; i < end;) {
+			int b = table.get(i) & 0xff;
+			int n;
+			if (b >= 0x20 && b < 0x7f || b == '\t' || b == '\n' || b == '\r') {
+				printable++;
+				i++;
+			} else if ((n = utf8Length(table, i, end)) > 0) {
+				printable += n; // 中文等多字节字符
+				i += n;
+			} else {
+				i++;
+			}
+		}
+		return printable >= mPrintableRatio * len;
+	}
+
+	/** pos处合法UTF-8多字节字符的字节数，不合法时返回0 */
+	private static int utf8Length(ByteBuffer table, int pos, int end) {
+		int b = table.get(pos) & 0xff;
+		int n = b >= 0xc2 && b <= 0xdf ? 2 : b >= 0xe0 && b <= 0xef ? 3 : b >= 0xf0 && b <= 0xf4 ? 4 : 0;
+		if (n == 0 || pos + n > end) {
+			return 0;
+		}
+		for (int i = 1; i < n; i++) {
+			if ((table.get(pos + i) & 0xc0) != 0x80) {
+				return 0;
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * 节区目录，解析时建立一次，按名称、类型查找节区，以及按文件偏移排序的节区列表
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import zhao.elf.editor.Elf.Elf_Shdr;
+
+public class SectionDirectory {
+	private final Map<String, Elf_Shdr> mByName;
+	private final Map<Integer, List<Elf_Shdr>> mByType;
+	private final List<Elf_Shdr> mByOffset;
+
+	SectionDirectory(Elf elf, Elf_Shdr[] sections) {
+		mByName = new HashMap<String, Elf_Shdr>(sections.length * 2);
+		mByType = new HashMap<Integer, List<Elf_Shdr>>();
+		for (Elf_Shdr sec : sections) {
+			String name = elf.getString(sec.sh_name);
+			// 同名节区以第一个为准
+			if (!mByName.containsKey(name)) {
+				mByName.put(name, sec);
+			}
+			List<Elf_Shdr> list = mByType.get(sec.sh_type);
+			if (list == null) {
+				list = new ArrayList<Elf_Shdr>(1);
+				mByType.put(sec.sh_type, list);
+			}
+			list.add(sec);
+		}
+		Elf_Shdr[] byOffset = sections.clone();
+		Arrays.sort(byOffset, new Comparator<Elf_Shdr>() {
+			@Override
+			public int compare(Elf_Shdr a, Elf_Shdr b) {
+				if (a.getOffset() != b.getOffset()) {
+					return a.getOffset() < b.getOffset() ? -1 : 1;
+				}
+				return a.index - b.index;
+			}
+		});
+		mByOffset = Collections.unmodifiableList(Arrays.asList(byOffset));
+	}
+
+	/** 按名称查找节区，不存在时返回null */
+	public Elf_Shdr get(String name) {
+		return mByName.get(name);
+	}
+
+	/** 按类型查找节区 */
+	public List<Elf_Shdr> getByType(int type) {
+		List<Elf_Shdr> list = mByType.get(type);
+		return list == null ? Collections.<Elf_Shdr> emptyList() : Collections.unmodifiableList(list);
+	}
+
+	/** 按类型查找第一个节区，不存在时返回null */
+	public Elf_Shdr getFirstByType(int type) {
+		List<Elf_Shdr> list = mByType.get(type);
+		return list == null ? null : list.get(0);
+	}
+
+	/** 按文件偏移排序的节区 */
+	public List<Elf_Shdr> getByOffset() {
+		return mByOffset;
+	}
+}
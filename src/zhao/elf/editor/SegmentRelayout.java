@@ -0,0 +1,277 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * 按内存页大小重新排布PT_LOAD段
+ * 在需要的段前面插入0填充，使p_offset与p_vaddr对页大小同余，虚拟地址不变；
+ * 输出时边写边插入填充，并替换文件头中的e_phoff/e_shoff、程序头部中的p_offset/p_align以及节区头部中的sh_offset
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import zhao.elf.editor.Elf.Ehdr;
+import zhao.elf.editor.Elf.Elf_Phdr;
+import zhao.elf.editor.Elf.Elf_Shdr;
+
+public class SegmentRelayout {
+	private static final byte[] ZEROS = new byte[4096];
+
+	private final int mPageSize;
+	private final ByteOrder mOrder;
+	/** 插入点(原文件偏移) -> 插入点之后的累计偏移量 */
+	private final TreeMap<Long, Long> mShifts = new TreeMap<Long, Long>();
+	/** 原文件偏移 -> 替换的字节 */
+	private final TreeMap<Long, byte[]> mOverrides = new TreeMap<Long, byte[]>();
+
+	public SegmentRelayout(Elf elf, int pageSize) throws IOException {
+		mPageSize = pageSize;
+		mOrder = elf.isLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		Ehdr h = elf.getHeader();
+		List<Elf_Phdr> loads = new ArrayList<Elf_Phdr>();
+		for (Elf_Phdr phdr : elf.mProgHeaders) {
+			if (phdr.p_type == Elf.PT_LOAD) {
+				loads.add(phdr);
+			}
+		}
+		Collections.sort(loads, new Comparator<Elf_Phdr>() {
+			@Override
+			public int compare(Elf_Phdr a, Elf_Phdr b) {
+				long x = a.p_offset & 0xffffffffL, y = b.p_offset & 0xffffffffL;
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+		});
+		long shift = 0;
+		for (Elf_Phdr load : loads) {
+			long offset = load.p_offset & 0xffffffffL;
+			long padding = ((load.getVaddr() - offset - shift) % pageSize + pageSize) % pageSize;
+			if (padding == 0) {
+				continue;
+			}
+			if (offset < h.e_ehsize) {
+				throw new IOException("Cannot move the segment containing the elf header");
+			}
+			checkSplit(elf, offset);
+			shift += padding;
+			mShifts.put(offset, shift);
+		}
+		if (shift > 0) {
+			prepareOverrides(elf);
+		}
+	}
+
+	/** 插入点不能落在其他段或节区的中间，否则它们会被拆开 */
+	private static void checkSplit(Elf elf, long offset) throws IOException {
+		for (Elf_Phdr phdr : elf.mProgHeaders) {
+			long start = phdr.p_offset & 0xffffffffL;
+			if (phdr.p_type == Elf.PT_LOAD && start < offset && offset < start + phdr.getFileSize()) {
+				throw new IOException("PT_LOAD segments overlap at 0x" + Long.toHexString(offset));
+			}
+		}
+		if (elf.isSectionless()) {
+			return;
+		}
+		for (Elf_Shdr sec : elf.getSectionHeaders()) {
+			if (sec.sh_type != Elf.SHT_NOBITS && sec.getOffset() < offset && offset < sec.getOffset() + sec.getSize()) {
+				throw new IOException("Section " + elf.getString(sec.sh_name) + " spans 0x" + Long.toHexString(offset));
+			}
+		}
+	}
+
+	private void prepareOverrides(Elf elf) {
+		Ehdr h = elf.getHeader();
+		boolean is64bit = elf.is64bit();
+		long phoff = h.getProgramOffset();
+		long shoff = h.getSectionOffset();
+		// 没有可靠的节区头部表时不改动e_shoff
+		boolean sections = !elf.isSectionless() && shoff > 0;
+		if (is64bit) {
+			override(32, map(phoff), 8);
+			if (sections) {
+				override(40, map(shoff), 8);
+			}
+		} else {
+			override(28, map(phoff), 4);
+			if (sections) {
+				override(32, map(shoff), 4);
+			}
+		}
+		for (int i = 0; i < elf.mProgHeaders.length; i++) {
+			Elf_Phdr phdr = elf.mProgHeaders[i];
+			long pos = phoff + (long) i * h.e_phentsize;
+			long offset = map(phdr.p_offset & 0xffffffffL);
+			long align = phdr.getAlign();
+			if (phdr.p_type == Elf.PT_LOAD && (align < mPageSize || align % mPageSize != 0)) {
+				align = mPageSize;
+			}
+			if (is64bit) {
+				override(pos + 8, offset, 8);
+				override(pos + 48, align, 8);
+			} else {
+				override(pos + 4, offset, 4);
+				override(pos + 28, align, 4);
+			}
+		}
+		if (sections) {
+			Elf_Shdr[] headers = elf.getSectionHeaders();
+			for (int i = 0; i < headers.length; i++) {
+				long pos = shoff + (long) i * h.e_shentsize;
+				if (is64bit) {
+					override(pos + 24, map(headers[i].getOffset()), 8);
+				} else {
+					override(pos + 16, map(headers[i].getOffset()), 4);
+				}
+			}
+		}
+	}
+
+	private void override(long pos, long value, int size) {
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(mOrder);
+		if (size == 8) {
+			buffer.putLong(value);
+		} else {
+			buffer.putInt((int) value);
+		}
+		mOverrides.put(pos, buffer.array());
+	}
+
+	/** 原文件偏移转换为新的文件偏移 */
+	public long map(long offset) {
+		Map.Entry<Long, Long> entry = mShifts.floorEntry(offset);
+		return entry == null ? offset : offset + entry.getValue();
+	}
+
+	/** 是否需要插入填充 */
+	public boolean isChanged() {
+		return !mShifts.isEmpty();
+	}
+
+	/** 插入的填充总字节数 */
+	public long getPadding() {
+		return mShifts.isEmpty() ? 0 : mShifts.lastEntry().getValue();
+	}
+
+	/**
+	 * 包装输出流，写入的原文件数据在插入点前补0，并替换文件头、程序头部和节区头部中的偏移
+	 */
+	public OutputStream wrap(OutputStream os) {
+		if (!isChanged()) {
+			return os;
+		}
+		return new FilterOutputStream(os) {
+			private long position;
+			private long shift;
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					pad();
+					int count = len;
+					Long next = mShifts.higherKey(position);
+					if (next != null) {
+						count = (int) Math.min(count, next - position);
+					}
+					Map.Entry<Long, byte[]> entry = mOverrides.floorEntry(position);
+					if (entry != null && position < entry.getKey() + entry.getValue().length) {
+						int from = (int) (position - entry.getKey());
+						count = Math.min(count, entry.getValue().length - from);
+						out.write(entry.getValue(), from, count);
+					} else {
+						Long key = mOverrides.higherKey(position);
+						if (key != null) {
+							count = (int) Math.min(count, key - position);
+						}
+						out.write(b, off, count);
+					}
+					position += count;
+					off += count;
+					len -= count;
+				}
+			}
+
+			/** 到达插入点时写入填充 */
+			private void pad() throws IOException {
+				Long total = mShifts.get(position);
+				if (total == null || total == shift) {
+					return;
+				}
+				for (long padding = total - shift; padding > 0; padding -= ZEROS.length) {
+					out.write(ZEROS, 0, (int) Math.min(padding, ZEROS.length));
+				}
+				shift = total;
+			}
+
+			@Override
+			public void close() throws IOException {
+				pad();
+				super.close();
+			}
+		};
+	}
+
+	/**
+	 * 包装进度回调，把原文件中的写入位置和总长度换算为插入填充后的输出位置和长度
+	 */
+	public ProgressCallBack wrap(final ProgressCallBack callBack) {
+		if (!isChanged()) {
+			return callBack;
+		}
+		return new ProgressCallBack() {
+			@Override
+			public void progress(long written, long total) {
+				callBack.progress(map(written), total + getPadding());
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("page ").append(mPageSize).append(", padding ").append(getPadding());
+		for (Map.Entry<Long, Long> entry : mShifts.entrySet()) {
+			sb.append("\n0x").append(Long.toHexString(entry.getKey())).append(" +0x")
+					.append(Long.toHexString(entry.getValue()));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * 静态符号表(.symtab)及其字符串表(.strtab)
+ * 符号直接从段数据中按需解码，不为每个符号创建对象，修改过的名称单独保存，内存占用只与修改的数量有关
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import zhao.elf.editor.IO.LEDataOutputStream;
+
+public class SymbolTable implements Iterable<SymbolTable.Symbol> {
+
+	/**
+	 * 符号表中的一项，迭代时同一个对象会被重复使用，需要保存时请记录index
+	 */
+	public class Symbol {
+		int index;
+		int base;
+
+		public int index() {
+			return index;
+		}
+
+		/** 名称在字符串表中的偏移 */
+		public int nameOffset() {
+			return mSymbols.getInt(base);
+		}
+
+		public String name() {
+			return getString(nameOffset());
+		}
+
+		public long value() {
+			return mIs64bit ? mSymbols.getLong(base + 8) : mSymbols.getInt(base + 4) & 0xffffffffL;
+		}
+
+		public long size() {
+			return mIs64bit ? mSymbols.getLong(base + 16) : mSymbols.getInt(base + 8) & 0xffffffffL;
+		}
+
+		public int info() {
+			return mSymbols.get(base + (mIs64bit ? 4 : 12)) & 0xff;
+		}
+
+		public int binding() {
+			return info() >> 4;
+		}
+
+		public int type() {
+			return info() & 0x0f;
+		}
+
+		public int shndx() {
+			return mSymbols.getShort(base + (mIs64bit ? 6 : 14)) & 0xffff;
+		}
+	}
+
+	private final ByteBuffer mSymbols;
+	private final ByteBuffer mStrings;
+	private final boolean mIs64bit;
+	private final int mEntrySize;
+	private final int mCount;
+	private final int mStringSection;
+	/** 修改过的名称，字符串表偏移 -> 新的数据(与原数据等长) */
+	private final TreeMap<Integer, byte[]> mEdits = new TreeMap<Integer, byte[]>();
+
+	/**
+	 * @param symbols
+	 *            .symtab段数据
+	 * @param strings
+	 *            .strtab段数据
+	 * @param stringSection
+	 *            .strtab在节区头部表中的索引
+	 */
+	SymbolTable(ByteBuffer symbols, ByteBuffer strings, boolean is64bit, int stringSection) {
+		mSymbols = symbols;
+		mStrings = strings;
+		mIs64bit = is64bit;
+		mEntrySize = is64bit ? 24 : 16;
+		mCount = symbols.capacity() / mEntrySize;
+		mStringSection = stringSection;
+	}
+
+	/** 符号个数 */
+	public int size() {
+		return mCount;
+	}
+
+	/** 字符串表在节区头部表中的索引 */
+	public int getStringSection() {
+		return mStringSection;
+	}
+
+	/** 获取第index个符号，返回的是新对象 */
+	public Symbol get(int index) {
+		if (index < 0 || index >= mCount) {
+			throw new IndexOutOfBoundsException("symbol " + index);
+		}
+		Symbol symbol = new Symbol();
+		symbol.index = index;
+		symbol.base = index * mEntrySize;
+		return symbol;
+	}
+
+	@Override
+	public Iterator<Symbol> iterator() {
+		final Symbol symbol = new Symbol();
+		symbol.index = -1;
+		return new Iterator<Symbol>() {
+			@Override
+			public boolean hasNext() {
+				return symbol.index + 1 < mCount;
+			}
+
+			@Override
+			public Symbol next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				symbol.index++;
+				symbol.base = symbol.index * mEntrySize;
+				return symbol;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/** 获取字符串表中offset处的字符串，包括已修改的名称 */
+	public String getString(int offset) {
+		byte[] edit = mEdits.get(offset);
+		if (edit != null) {
+			int length = 0;
+			while (length < edit.length && edit[length] != 0) {
+				length++;
+			}
+			return new String(edit, 0, length);
+		}
+		return new String(originalBytes(offset));
+	}
+
+	/** 字符串表中offset处原来的字符串数据，不含结尾的'\0' */
+	byte[] originalBytes(int offset) {
+		int end = offset;
+		while (end < mStrings.capacity() && mStrings.get(end) != 0) {
+			end++;
+		}
+		byte[] data = new byte[end - offset];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = mStrings.get(offset + i);
+		}
+		return data;
+	}
+
+	/** 字符串表中offset处当前的字符串数据，与原数据等长 */
+	byte[] currentBytes(int offset) {
+		byte[] edit = mEdits.get(offset);
+		return edit != null ? edit.clone() : originalBytes(offset);
+	}
+
+	/**
+	 * 修改字符串表offset处的名称，新名称不能比原来的长，不足的部分用'\0'填充
+	 * 共用同一个字符串(包括后缀)的符号会一同改变
+	 *
+	 * @return 修改后与原数据等长的字节
+	 */
+	byte[] setString(int offset, byte[] name) {
+		byte[] original = originalBytes(offset);
+		if (name.length > original.length) {
+			throw new IllegalArgumentException("New name is longer than the original one");
+		}
+		byte[] data = new byte[original.length];
+		System.arraycopy(name, 0, data, 0, name.length);
+		if (Arrays.equals(data, original)) {
+			mEdits.remove(offset);
+			return data;
+		}
+		// 不允许与其它修改过的名称重叠
+		Map.Entry<Integer, byte[]> before = mEdits.lowerEntry(offset);
+		SortedMap<Integer, byte[]> after = mEdits.subMap(offset + 1, offset + data.length + 1);
+		if ((before != null && before.getKey() + before.getValue().length > offset) || !after.isEmpty()) {
+			throw new IllegalArgumentException("Name overlaps another renamed string");
+		}
+		mEdits.put(offset, data);
+		return data;
+	}
+
+	public boolean isDirty() {
+		return !mEdits.isEmpty();
+	}
+
+	/** 修改过的名称，字符串表偏移 -> 新的数据 */
+	Map<Integer, byte[]> getEdits() {
+		return mEdits;
+	}
+
+	/** 写出修改后的字符串表，按顺序复制原数据并替换修改过的部分 */
+	void writeStrings(LEDataOutputStream lmOut) throws IOException {
+		ByteBuffer strings = mStrings.duplicate();
+		byte[] buffer = new byte[2048];
+		int position = 0;
+		for (Map.Entry<Integer, byte[]> edit : mEdits.entrySet()) {
+			position = copy(strings, position, edit.getKey(), buffer, lmOut);
+			lmOut.writeFully(edit.getValue());
+			position += edit.getValue().length;
+		}
+		copy(strings, position, strings.capacity(), buffer, lmOut);
+	}
+
+	private static int copy(ByteBuffer src, int start, int end, byte[] buffer, LEDataOutputStream lmOut)
+			throws IOException {
+		src.position(start);
+		while (start < end) {
+			int count = Math.min(buffer.length, end - start);
+			src.get(buffer, 0, count);
+			lmOut.writeFully(buffer, 0, count);
+			start += count;
+		}
+		return end;
+	}
+}
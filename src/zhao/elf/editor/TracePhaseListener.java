@@ -0,0 +1,90 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * 把解析和保存的各个阶段输出到系统跟踪(systrace/Perfetto)，用来把慢的保存与GC、I/O对照分析
+ * 每个阶段是一个以"elf:"开头的跟踪段，段名带文件名；处理的字节数等统计交给下一个监听器(如{@link PhaseHistogram})记录
+ * 只用到Android 4.3(API 18)开始提供的beginSection/endSection
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+import java.util.Locale;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.os.Trace;
+
+public class TracePhaseListener implements PhaseListener {
+	/** 跟踪段名的最大长度 */
+	private static final int MAX_SECTION_NAME = 127;
+
+	/** 系统是否支持跟踪段，Android 4.3开始支持 */
+	private static final boolean SUPPORTED = Build.VERSION.SDK_INT >= 18;
+
+	/** 同时接收统计的监听器 */
+	private final PhaseListener mNext;
+
+	public TracePhaseListener() {
+		this(NONE);
+	}
+
+	/**
+	 * @param next
+	 *            同时接收统计的监听器，例如{@link PhaseHistogram}
+	 */
+	public TracePhaseListener(PhaseListener next) {
+		mNext = next == null ? NONE : next;
+	}
+
+	@SuppressLint("NewApi")
+	@Override
+	public void onPhaseStart(Elf elf, Phase phase) {
+		if (SUPPORTED) {
+			// 段必须成对出现，因此开始时不判断是否正在跟踪
+			Trace.beginSection(sectionName(elf, phase));
+		}
+		mNext.onPhaseStart(elf, phase);
+	}
+
+	@SuppressLint("NewApi")
+	@Override
+	public void onPhase(Elf elf, Phase phase, long nanos, long bytes, long allocated) {
+		if (SUPPORTED) {
+			Trace.endSection();
+		}
+		mNext.onPhase(elf, phase, nanos, bytes, allocated);
+	}
+
+	private static String sectionName(Elf elf, Phase phase) {
+		String name = "elf:" + phase.name().toLowerCase(Locale.US);
+		if (elf.getName() != null) {
+			name += " " + elf.getName();
+		}
+		return name.length() > MAX_SECTION_NAME ? name.substring(0, MAX_SECTION_NAME) : name;
+	}
+}
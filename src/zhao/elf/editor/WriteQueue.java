@@ -0,0 +1,216 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2017 ZhaoHai
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * 保存时的有界写入队列，生成数据的线程按文件偏移顺序放入数据块，写入线程按顺序取出写出
+ * 原文件中未修改的区间以只读视图放入，不复制；重新生成的段写入固定数量的缓冲块，写出后回收，
+ * 因此同时存在的生成数据不超过{@link #WriteQueue(int, int, int)}中指定的缓冲块数
+ * @author zhaohai
+ */
+package zhao.elf.editor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+final class WriteQueue {
+	/** 等待队列或缓冲块时检查写入线程是否已经结束的间隔，毫秒 */
+	private static final long POLL_INTERVAL = 100;
+
+	/** 队列中的一块数据 */
+	static final class Chunk {
+		final ByteBuffer data;
+		final boolean pooled; // 是否为需要回收的缓冲块
+
+		Chunk(ByteBuffer data, boolean pooled) {
+			this.data = data;
+			this.pooled = pooled;
+		}
+	}
+
+	/** 结束标记 */
+	static final Chunk END = new Chunk(ByteBuffer.allocate(0), false);
+
+	private final BlockingQueue<Chunk> mQueue;
+	private final BlockingQueue<ByteBuffer> mFree; // 已经写出、可以重用的缓冲块
+	private final int mChunkSize;
+	private final int mMaxBuffers;
+	private int mAllocated; // 已分配的缓冲块数，只在生成数据的线程上访问
+	private Future<?> mConsumer; // 写入线程
+
+	/**
+	 * @param chunkSize
+	 *            每块数据的最大大小
+	 * @param capacity
+	 *            队列中最多的块数
+	 * @param buffers
+	 *            最多分配的缓冲块数
+	 */
+	WriteQueue(int chunkSize, int capacity, int buffers) {
+		mChunkSize = chunkSize;
+		mMaxBuffers = buffers;
+		mQueue = new ArrayBlockingQueue<Chunk>(capacity);
+		mFree = new ArrayBlockingQueue<ByteBuffer>(buffers);
+	}
+
+	/** 设置写入线程，它出错结束后放入数据时抛出它的异常，而不是一直等待 */
+	void setConsumer(Future<?> consumer) {
+		mConsumer = consumer;
+	}
+
+	/** 按块大小切分后放入只读视图，不复制数据 */
+	void put(ByteBuffer buffer) throws IOException {
+		for (int position = 0; position < buffer.limit(); position += mChunkSize) {
+			ByteBuffer chunk = buffer.duplicate();
+			chunk.limit(Math.min(buffer.limit(), position + mChunkSize)).position(position);
+			enqueue(new Chunk(chunk.slice(), false));
+		}
+	}
+
+	/** 放入结束标记 */
+	void end() throws IOException {
+		enqueue(END);
+	}
+
+	/** 出错时丢弃还没有写出的数据，让写入线程结束 */
+	void abort() {
+		mQueue.clear();
+		mQueue.offer(END);
+	}
+
+	/** 写入线程取出下一块，没有数据时等待 */
+	Chunk take() throws InterruptedException {
+		return mQueue.take();
+	}
+
+	/** 写入线程取出已经就绪的块 */
+	int drainTo(Collection<Chunk> chunks, int max) {
+		return mQueue.drainTo(chunks, max);
+	}
+
+	/** 写入线程写出一块后回收缓冲块 */
+	void recycle(Chunk chunk) {
+		if (chunk.pooled) {
+			chunk.data.clear();
+			mFree.offer(chunk.data);
+		}
+	}
+
+	/**
+	 * 写入缓冲块的通道，写满一块就放入队列，关闭时放入最后不满的一块
+	 */
+	WritableByteChannel newChannel() {
+		return new WritableByteChannel() {
+			private ByteBuffer mCurrent;
+			private boolean mOpen = true;
+
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				int count = src.remaining();
+				while (src.hasRemaining()) {
+					if (mCurrent == null) {
+						mCurrent = obtain();
+					}
+					int n = Math.min(src.remaining(), mCurrent.remaining());
+					ByteBuffer part = src.duplicate();
+					part.limit(part.position() + n);
+					mCurrent.put(part);
+					src.position(src.position() + n);
+					if (!mCurrent.hasRemaining()) {
+						flush();
+					}
+				}
+				return count;
+			}
+
+			private void flush() throws IOException {
+				mCurrent.flip();
+				enqueue(new Chunk(mCurrent, true));
+				mCurrent = null;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return mOpen;
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (mOpen) {
+					mOpen = false;
+					if (mCurrent != null) {
+						flush();
+					}
+				}
+			}
+		};
+	}
+
+	/** 取得一个空的缓冲块，都在使用中时等待写入线程回收 */
+	private ByteBuffer obtain() throws IOException {
+		ByteBuffer buffer = mFree.poll();
+		if (buffer != null) {
+			return buffer;
+		}
+		if (mAllocated < mMaxBuffers) {
+			mAllocated++;
+			return ByteBuffer.allocate(mChunkSize);
+		}
+		try {
+			while ((buffer = mFree.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS)) == null) {
+				checkConsumer();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e.toString());
+		}
+		return buffer;
+	}
+
+	/** 放入一块，队列满时等待 */
+	private void enqueue(Chunk chunk) throws IOException {
+		try {
+			while (!mQueue.offer(chunk, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+				checkConsumer();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	/** 写入线程已经结束时抛出它的异常 */
+	private void checkConsumer() throws IOException {
+		if (mConsumer != null && mConsumer.isDone()) {
+			Elf.join(mConsumer);
+			throw new IOException("Writer stopped before the end of output");
+		}
+	}
+}